@@ -16,10 +16,15 @@
 package org.geotools.caching;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import com.vividsolutions.jts.geom.Envelope;
@@ -41,6 +46,7 @@ import org.geotools.data.Query;
 import org.geotools.data.Transaction;
 import org.geotools.data.store.EmptyFeatureCollection;
 import org.geotools.feature.AttributeType;
+import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureType;
 import org.geotools.filter.FilterCapabilities;
@@ -68,6 +74,11 @@ public abstract class AbstractFeatureCache implements FeatureCache, FeatureListe
     protected int source_hits = 0;
     protected int source_feature_reads = 0;
 
+    /**
+     * Loads from source in progress, by key of the missing parts of the cache they have claimed.
+     */
+    protected ConcurrentHashMap<Object, SourceLoad> pending = new ConcurrentHashMap<Object, SourceLoad>();
+
     public AbstractFeatureCache(FeatureSource fs) {
         this.fs = fs;
         fs.addFeatureListener(this);
@@ -207,7 +218,9 @@ public abstract class AbstractFeatureCache implements FeatureCache, FeatureListe
         } else { // we need missing data from source
                  // get from cache what we have
 
-            FeatureCollection fromCache = peek(sr);
+            FeatureCollection fromCache = new DefaultFeatureCollection("AbstractFeatureCache",
+                    getSchema());
+            fromCache.addAll(peek(sr));
 
             // get from source what we are missing
             FeatureCollection fromSource = this.fs.getFeatures(notcached);
@@ -230,73 +243,137 @@ public abstract class AbstractFeatureCache implements FeatureCache, FeatureListe
         }
     }
 
+    /** Returns features within envelope e, from cache when possible,
+     * and from source for missing parts.
+     * Partial results are merged in a DefaultFeatureCollection,
+     * which relies on its dropping features with the same ID to return each feature once :
+     * peek(e) runs after source loads have been put in cache,
+     * and features may lie both in cached parts and in parts loaded from source.
+     * Returned collection may also contain features outside e, that callers filter out.
+     *
+     * @param e
+     * @return features within e
+     * @throws IOException if source fails, including when a joined concurrent query fails
+     */
     public FeatureCollection get(Envelope e) throws IOException {
-        List notcached = match(e);
+        SourceLoad load = new SourceLoad();
+        List notcached = match(e, load);
         FeatureCollection fromCache;
         FeatureCollection fromSource;
         String geometryname = fs.getSchema().getPrimaryGeometry().getLocalName();
         String srs = fs.getSchema().getPrimaryGeometry().getCoordinateSystem().toString();
 
-        if (notcached.isEmpty()) { // everything in cache
-                                   // return result from cache
+        if (notcached.isEmpty() && load.joined.isEmpty()) { // everything in cache
+                                                            // return result from cache
 
             return peek(e);
-        } else if (notcached.size() == 1) {
+        } else if ((notcached.size() == 1) && load.joined.isEmpty()) {
             Envelope m = (Envelope) notcached.get(0);
 
             if (m == e) { // nothing in cache
                           // get all stuff from source
 
-                Filter filter = ff.bbox(geometryname, m.getMinX(), m.getMinY(), m.getMaxX(),
+                load.filter = ff.bbox(geometryname, m.getMinX(), m.getMinY(), m.getMaxX(),
                         m.getMaxY(), srs);
-                fromSource = this.fs.getFeatures(filter);
-                source_hits++;
-                source_feature_reads += fromSource.size();
+                load.extent = e;
 
-                try {
-                    put(fromSource, e);
-                } catch (CacheOversizedException e1) {
-                    logger.log(Level.INFO, "Adding data to cache : " + e1);
-                }
-
-                return fromSource;
+                return load.run();
             }
         }
 
         // we need missing data from source
-        // first, get from cache what we have
-        fromCache = peek(e);
-
-        // then, get from source what we are missing
-        ArrayList filters = new ArrayList(notcached.size());
+        // first, get from source what we are missing, and that no other query is loading
+        if (!notcached.isEmpty()) {
+            ArrayList filters = new ArrayList(notcached.size());
+
+            for (Iterator it = notcached.iterator(); it.hasNext();) {
+                Envelope next = (Envelope) it.next();
+                Filter bbox = ff.bbox(geometryname, next.getMinX(), next.getMinY(),
+                        next.getMaxX(), next.getMaxY(), srs);
+                filters.add(bbox);
+            }
 
-        for (Iterator it = notcached.iterator(); it.hasNext();) {
-            Envelope next = (Envelope) it.next();
-            Filter bbox = ff.bbox(geometryname, next.getMinX(), next.getMinY(), next.getMaxX(),
-                    next.getMaxY(), srs);
-            filters.add(bbox);
+            load.filter = ff.or(filters);
+            fromSource = load.run();
+        } else {
+            fromSource = null;
         }
 
-        Filter filter = ff.or(filters);
-        fromSource = this.fs.getFeatures(filter);
-        source_hits++;
-        source_feature_reads += fromSource.size();
-
-        try {
-            put(fromSource); // add new data to cache - will raise an exception if cache is oversized 
-            register(filter); // get notice we discovered some new part of the universe
-        } catch (UnsupportedOperationException e1) {
-            logger.log(Level.WARNING, "Adding data to cache : " + e1.toString());
-        } catch (CacheOversizedException e1) {
-            logger.log(Level.INFO, "Adding data to cache : " + e1.toString());
+        // then, get from cache what we have,
+        // and merge result sets before returning :
+        // DefaultFeatureCollection is keyed by feature ID, so it drops features found twice,
+        // as data loaded above has already been added to cache, and peek will find it again
+        fromCache = new DefaultFeatureCollection("AbstractFeatureCache", getSchema());
+        fromCache.addAll(peek(e));
+
+        if (fromSource != null) {
+            fromCache.addAll(fromSource);
         }
 
-        // merge result sets before returning
-        fromCache.addAll(fromSource);
+        // including data loaded for us by concurrent queries
+        for (Iterator<SourceLoad> it = load.joined.iterator(); it.hasNext();) {
+            fromCache.addAll(it.next().await());
+        }
 
         return fromCache;
     }
 
+    /** Same as match(e), but accounts for data being loaded from source by concurrent queries.
+     * Implementations supporting concurrent access should claim the parts of the cache they return
+     * on behalf of <code>load</code>, using <code>claim()</code>,
+     * and join pending loads which already claimed other missing parts.
+     * This default implementation does not coalesce queries.
+     *
+     * @param e
+     * @param load the load which will fetch returned envelopes from source
+     * @return list of envelopes to fetch from source
+     */
+    protected List match(Envelope e, SourceLoad load) {
+        return match(e);
+    }
+
+    /** Claims a missing part of the cache, identified by key, to be loaded by <code>load</code>.
+     * If another load has already claimed this key, the given load joins it.
+     *
+     * @param key identifying a missing part of the cache, such as a tile
+     * @param load
+     * @return <code>true</code> if key has been claimed by load,
+     *         <code>false</code> if it is being loaded by another query
+     */
+    protected boolean claim(Object key, SourceLoad load) {
+        SourceLoad other = pending.putIfAbsent(key, load);
+
+        if ((other == null) || (other == load)) {
+            if (!load.keys.contains(key)) {
+                load.keys.add(key);
+            }
+
+            return true;
+        }
+
+        if (!load.joined.contains(other)) {
+            load.joined.add(other);
+        }
+
+        return false;
+    }
+
+    /** Gives up a claim made with <code>claim()</code>, when the key turns out not to be missing.
+     *
+     * @param key
+     * @param load
+     */
+    protected void unclaim(Object key, SourceLoad load) {
+        if (load.keys.remove(key)) {
+            pending.remove(key, load);
+        }
+    }
+
+    protected synchronized void countSourceAccess(int features) {
+        source_hits++;
+        source_feature_reads += features;
+    }
+
     /**@deprecated
      * @param sr
      * @return
@@ -350,11 +427,98 @@ public abstract class AbstractFeatureCache implements FeatureCache, FeatureListe
         }
     }
 
-    public String sourceAccessStats() {
+    public synchronized String sourceAccessStats() {
         StringBuffer sb = new StringBuffer();
         sb.append("Source hits = " + source_hits);
         sb.append(" ; Feature reads = " + source_feature_reads);
 
         return sb.toString();
     }
+
+    /** A query to the source, loading missing data into the cache.
+     * Concurrent queries missing the same data wait for the load to complete,
+     * and share its result, rather than querying the source again.
+     * Claimed keys are released once data has been added to the cache.
+     *
+     * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+     *
+     */
+    protected class SourceLoad implements Callable<FeatureCollection> {
+        final List<Object> keys = new ArrayList<Object>();
+        final List<SourceLoad> joined = new ArrayList<SourceLoad>();
+        final FutureTask<FeatureCollection> future = new FutureTask<FeatureCollection>(this);
+        Filter filter;
+        Envelope extent;
+
+        public FeatureCollection call() throws IOException {
+            try {
+                FeatureCollection fromSource = fs.getFeatures(filter);
+                countSourceAccess(fromSource.size());
+
+                try {
+                    if (extent != null) {
+                        put(fromSource, extent);
+                    } else {
+                        put(fromSource); // add new data to cache - will raise an exception if cache is oversized 
+                        register(filter); // get notice we discovered some new part of the universe
+                    }
+                } catch (UnsupportedOperationException e) {
+                    logger.log(Level.WARNING, "Adding data to cache : " + e.toString());
+                } catch (CacheOversizedException e) {
+                    logger.log(Level.INFO, "Adding data to cache : " + e.toString());
+                }
+
+                return fromSource;
+            } finally {
+                for (Iterator<Object> it = keys.iterator(); it.hasNext();) {
+                    pending.remove(it.next(), this);
+                }
+            }
+        }
+
+        /**
+         * @return <code>true</code> if this load waits for data loaded by concurrent queries
+         */
+        public boolean hasJoined() {
+            return !joined.isEmpty();
+        }
+
+        /** Loads data in the calling thread.
+         *
+         * @return features read from source
+         * @throws IOException
+         */
+        FeatureCollection run() throws IOException {
+            future.run();
+
+            return await();
+        }
+
+        /** Waits for data loaded by another thread.
+         *
+         * @return features read from source
+         * @throws IOException
+         */
+        FeatureCollection await() throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw (IOException) new InterruptedIOException("Interrupted while waiting for source")
+                .initCause(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw (IOException) new IOException(cause.toString()).initCause(cause);
+                }
+            }
+        }
+    }
 }
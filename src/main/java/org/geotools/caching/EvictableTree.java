@@ -19,5 +19,10 @@ import org.geotools.caching.spatialindex.NodeIdentifier;
 
 
 public interface EvictableTree {
-    public void evict(NodeIdentifier node);
+    /** Evicts node from the tree.
+     *
+     * @param node
+     * @return <code>false</code> if node was not part of the tree anymore, and nothing was evicted
+     */
+    public boolean evict(NodeIdentifier node);
 }
@@ -15,11 +15,23 @@
  */
 package org.geotools.caching;
 
+import java.util.List;
 import org.geotools.caching.spatialindex.NodeIdentifier;
 
 
 public interface EvictionPolicy {
-    public void evict();
+    /** Evicts the next node to evict.
+     *
+     * @return <code>false</code> if there was no node left to evict
+     */
+    public boolean evict();
 
     public void access(NodeIdentifier node);
+
+    /** Lists nodes known to the policy, in the order they would be evicted.
+     * Accessing these nodes in the same order restores the state of the policy.
+     *
+     * @return list of nodes, first to evict first
+     */
+    public List<NodeIdentifier> getAccessOrder();
 }
@@ -15,35 +15,101 @@
  */
 package org.geotools.caching;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.List;
 import org.geotools.caching.spatialindex.NodeIdentifier;
 
 
+/** Evicts least recently accessed nodes first.
+ * Nodes are kept in a doubly-linked list, from least to most recently accessed ;
+ * list entries are attached to node identifiers, so accessing a node only moves its entry
+ * to the tail of the list, without lookups nor allocation once the node has been seen.
+ * This requires identifiers to be canonical, which is the case in grids.
+ * Access order is shared by all threads using the tree, so queue operations are synchronized ;
+ * the victim is chosen under the lock, but evicted outside of it,
+ * as trees may need to acquire node locks of their own while evicting.
+ */
 public class LRUEvictionPolicy implements EvictionPolicy {
-    LinkedHashMap<NodeIdentifier, Object> queue;
+    /**
+     * sentinel of the circular list : head.next is the least recently accessed node.
+     */
+    final Entry head;
     EvictableTree tree;
 
     public LRUEvictionPolicy(EvictableTree tree) {
-        this.queue = new LinkedHashMap<NodeIdentifier, Object>(100, .75f, true);
+        this.head = new Entry(null);
+        head.previous = head;
+        head.next = head;
         this.tree = tree;
     }
 
-    public void evict() {
-        Iterator<NodeIdentifier> it = queue.keySet().iterator();
+    public boolean evict() {
+        while (true) {
+            NodeIdentifier node = null;
+
+            synchronized (this) {
+                Entry eldest = head.next;
+
+                if (eldest == head) {
+                    return false;
+                }
+
+                eldest.unlink();
+                node = eldest.id;
+            }
+
+            if (tree.evict(node)) {
+                return true;
+            }
+        }
+    }
+
+    public synchronized void access(NodeIdentifier node) {
+        Entry e = (Entry) node.getEvictionEntry();
 
-        if (it.hasNext()) {
-            NodeIdentifier node = it.next();
-            tree.evict(node);
-            queue.remove(node);
+        if (e == null) {
+            e = new Entry(node);
+            node.setEvictionEntry(e);
+        } else if (e.previous != null) {
+            e.unlink();
         }
+
+        e.linkBefore(head);
     }
 
-    public void access(NodeIdentifier node) {
-        if (queue.containsKey(node)) {
-            queue.get(node);
-        } else {
-            queue.put(node, null);
+    public synchronized List<NodeIdentifier> getAccessOrder() {
+        List<NodeIdentifier> order = new ArrayList<NodeIdentifier>();
+
+        for (Entry e = head.next; e != head; e = e.next) {
+            order.add(e.id);
+        }
+
+        return order;
+    }
+
+    static final class Entry {
+        final NodeIdentifier id;
+        Entry previous;
+        Entry next;
+
+        Entry(NodeIdentifier id) {
+            this.id = id;
+        }
+
+        /** Inserts this entry before e, ie at the tail of the list if e is the head.
+         */
+        void linkBefore(Entry e) {
+            previous = e.previous;
+            next = e;
+            previous.next = this;
+            e.previous = this;
+        }
+
+        void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = null;
+            next = null;
         }
     }
 }
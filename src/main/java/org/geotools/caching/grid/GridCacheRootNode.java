@@ -16,6 +16,7 @@
 package org.geotools.caching.grid;
 
 import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.SpatialIndex;
 import org.geotools.caching.spatialindex.grid.GridData;
 import org.geotools.caching.spatialindex.grid.GridNode;
 import org.geotools.caching.spatialindex.grid.GridRootNode;
@@ -43,6 +44,24 @@ public class GridCacheRootNode extends GridRootNode {
         this.grid = grid;
     }
 
+    /** Create a sub-grid covering a tile of the tracker.
+     *
+     * @param grid
+     * @param mbr
+     * @param tiles_number
+     * @param tiles_size
+     */
+    GridCacheRootNode(GridTracker grid, Region mbr, int[] tiles_number, double tiles_size) {
+        super(grid, mbr, tiles_number, tiles_size);
+        this.grid = grid;
+    }
+
+    @Override
+    public void init(SpatialIndex grid) {
+        super.init(grid);
+        this.grid = (GridTracker) grid;
+    }
+
     @Override
     protected void split() {
         super.split();
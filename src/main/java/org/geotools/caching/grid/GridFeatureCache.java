@@ -21,15 +21,17 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.ExecutorService;
 import com.vividsolutions.jts.geom.Envelope;
 import org.opengis.filter.Filter;
 import org.geotools.caching.AbstractFeatureCache;
 import org.geotools.caching.CacheOversizedException;
 import org.geotools.caching.FeatureCacheException;
-import org.geotools.caching.FeatureCollectingVisitor;
+import org.geotools.caching.spatialindex.NodeIdentifier;
 import org.geotools.caching.spatialindex.Region;
 import org.geotools.caching.spatialindex.Storage;
+import org.geotools.caching.spatialindex.grid.GridData;
+import org.geotools.caching.util.FeatureSizeEstimator;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
 import org.geotools.feature.Feature;
@@ -41,9 +43,24 @@ import org.geotools.filter.spatial.BBOXImpl;
 
 public class GridFeatureCache extends AbstractFeatureCache {
     GridTracker tracker;
-    int max_tiles = 10;
+
+    /**
+     * max number of regions queried from source for one query
+     */
+    int max_regions = 10;
+
+    /**
+     * ratio of area not missing from cache that may be queried again from source,
+     * relative to missing area, in order to query fewer regions
+     */
+    double overfetch = 0.25;
     int capacity;
 
+    /**
+     * max estimated size of cached features, in bytes, or 0 if unbounded
+     */
+    long byteCapacity = 0;
+
     //int evictions = 0 ;
     //int puts = 0 ;
 
@@ -55,6 +72,19 @@ public class GridFeatureCache extends AbstractFeatureCache {
      */
     public GridFeatureCache(FeatureSource fs, int indexcapacity, int capacity, Storage store)
         throws FeatureCacheException {
+        this(fs, indexcapacity, capacity, store, GridTracker.DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param FeatureStore from which to cache features
+     * @param indexcapacity = number of tiles in index
+     * @param capacity = max number of features to cache
+     * @param concurrencyLevel = number of lock stripes shared by tiles,
+     *        ie how many threads may update the cache without blocking each other
+     * @throws FeatureCacheException
+     */
+    public GridFeatureCache(FeatureSource fs, int indexcapacity, int capacity, Storage store,
+        int concurrencyLevel) throws FeatureCacheException {
         super(fs);
 
         Envelope universe;
@@ -65,25 +95,53 @@ public class GridFeatureCache extends AbstractFeatureCache {
             throw new FeatureCacheException(e);
         }
 
-        this.tracker = new GridTracker(convert(universe), indexcapacity, store);
+        this.tracker = new GridTracker(convert(universe), indexcapacity, store, concurrencyLevel);
         this.capacity = capacity;
 
         //this.tracker.addWriteNodeCommand(new EvictOnWriteCommand()) ;
     }
 
+    /** Lets the cache split dense or frequently queried tiles into smaller tiles,
+     * so that validity and eviction work at a granularity matching data density.
+     *
+     * @see Grid#setAdaptive(int, int, int)
+     * @param splitThreshold data count, or 0 not to split tiles on data count
+     * @param hotThreshold query count, or 0 not to split tiles on query count
+     * @param maxDepth max levels of sub-grids below top-level tiles
+     */
+    public void setAdaptive(int splitThreshold, int hotThreshold, int maxDepth) {
+        tracker.setAdaptive(splitThreshold, hotThreshold, maxDepth);
+    }
+
+    /** Lets the cache fill tiles in parallel when putting a collection of features.
+     *
+     * @see GridTracker#setExecutor(ExecutorService)
+     * @param executor or <code>null</code> to fill tiles in the calling thread
+     */
+    public void setExecutor(ExecutorService executor) {
+        tracker.setExecutor(executor);
+    }
+
+    /** Saves the state of the cache, so that a cache created later on the same storage starts warm.
+     *
+     * @see GridTracker#checkpoint()
+     * @throws IOException
+     * @throws UnsupportedOperationException if storage is not persistent
+     */
+    public void checkpoint() throws IOException {
+        tracker.checkpoint();
+    }
+
     protected Filter match(BBOXImpl sr) {
         Region search = convert(extractEnvelope(sr));
-        Stack missing = tracker.searchMissingTiles(search);
+        List<Region> missing = cover(tracker.searchMissingTiles(search), overfetch);
         FilterFactoryImpl ff = new FilterFactoryImpl();
 
-        // TODO: group regions
-        if (missing.size() > max_tiles) {
-            return sr;
-        } else if (missing.size() > 1) {
+        if (missing.size() > 1) {
             ArrayList<Filter> filters = new ArrayList<Filter>(missing.size());
 
-            while (!missing.isEmpty()) {
-                Region rg = (Region) missing.pop();
+            for (Iterator<Region> it = missing.iterator(); it.hasNext();) {
+                Region rg = it.next();
                 Filter bbf = ff.bbox(sr.getPropertyName(), rg.getLow(0), rg.getLow(1),
                         rg.getHigh(0), rg.getHigh(1), sr.getSRS());
                 filters.add(bbf);
@@ -91,7 +149,7 @@ public class GridFeatureCache extends AbstractFeatureCache {
 
             return ff.or(filters);
         } else if (missing.size() == 1) {
-            Region rg = (Region) missing.pop();
+            Region rg = missing.get(0);
 
             return ff.bbox(sr.getPropertyName(), rg.getLow(0), rg.getLow(1), rg.getHigh(0),
                 rg.getHigh(1), sr.getSRS());
@@ -116,30 +174,138 @@ public class GridFeatureCache extends AbstractFeatureCache {
             search = convert(r);
         }
 
-        List missing_tiles = tracker.searchMissingTiles(search);
+        List<Region> missing_tiles = cover(tracker.searchMissingTiles(search), overfetch);
 
-        // TODO: groug regions
-        if (missing_tiles.size() > max_tiles) {
-            missing.add(e);
-        } else {
-            for (Iterator it = missing_tiles.iterator(); it.hasNext();) {
-                Region next = (Region) it.next();
-                missing.add(convert(next));
+        for (Iterator<Region> it = missing_tiles.iterator(); it.hasNext();) {
+            missing.add(convert(it.next()));
+        }
+
+        return missing;
+    }
+
+    /**
+     * @param e
+     * @param load
+     * @return list of envelopes not in cache, and not being loaded by concurrent queries,
+     *         which are claimed by <code>load</code>
+     */
+    protected List match(Envelope e, SourceLoad load) {
+        Region search = convert(e);
+        ArrayList<Envelope> missing = new ArrayList<Envelope>();
+
+        if (this.tracker.getRoot().isValid()) {
+            return missing;
+        }
+
+        if (!this.tracker.getRoot().getShape().contains(search)) { // query is outside of root mbr
+                                                                   // we limit our search to the inside of the root mbr
+
+            Envelope r = convert((Region) this.tracker.getRoot().getShape());
+            r = r.intersection(e);
+            search = convert(r);
+        }
+
+        List<NodeIdentifier> tiles = tracker.searchTiles(search);
+        ArrayList<Region> claimed = new ArrayList<Region>();
+        boolean foundValid = false;
+
+        for (Iterator<NodeIdentifier> it = tiles.iterator(); it.hasNext();) {
+            NodeIdentifier next = it.next();
+
+            if (next.isValid()) {
+                foundValid = true;
+            } else if (claim(next, load)) {
+                if (next.isValid()) { // validated by a load completing meanwhile
+                    unclaim(next, load);
+                    foundValid = true;
+                } else {
+                    claimed.add((Region) next.getShape());
+                }
             }
         }
 
+        if (!foundValid && !load.hasJoined() && (claimed.size() == tiles.size())) {
+            // nothing in cache : return e itself, so that it is fetched with a single query
+            missing.add(e);
+
+            return missing;
+        }
+
+        // when joining concurrent loads, do not over-fetch tiles they are loading,
+        // unless it is required to bound the number of regions
+        List<Region> regions = cover(claimed, load.hasJoined() ? 0 : overfetch);
+
+        for (Iterator<Region> it = regions.iterator(); it.hasNext();) {
+            missing.add(convert(it.next()));
+        }
+
         return missing;
     }
 
+    /** Groups missing tiles into at most <code>max_regions</code> regions.
+     *
+     * @see RegionCover#cover(List, int, double)
+     * @param tiles
+     * @param overfetch
+     * @return regions to query from source
+     */
+    List<Region> cover(List<Region> tiles, double overfetch) {
+        return RegionCover.cover(tiles, max_regions, overfetch);
+    }
+
+    /**
+     * @return max number of regions queried from source for one query
+     */
+    public int getMaxRegions() {
+        return max_regions;
+    }
+
+    /** Bounds the number of regions queried from source for one query.
+     * Missing tiles are grouped into larger regions until this bound is met,
+     * even if that means querying again features already in cache.
+     *
+     * @param maxRegions
+     */
+    public void setMaxRegions(int maxRegions) {
+        if (maxRegions < 1) {
+            throw new IllegalArgumentException("Must query at least one region : " + maxRegions);
+        }
+
+        this.max_regions = maxRegions;
+    }
+
+    /**
+     * @return ratio of area already in cache that may be queried again from source,
+     *         relative to missing area
+     */
+    public double getOverfetchRatio() {
+        return overfetch;
+    }
+
+    /** Lets missing tiles be grouped into fewer regions,
+     * as long as the area already in cache covered by regions does not exceed
+     * the given ratio of missing area.
+     *
+     * @param overfetch 0 to group only tiles forming exact rectangles
+     */
+    public void setOverfetchRatio(double overfetch) {
+        if (overfetch < 0) {
+            throw new IllegalArgumentException("Ratio must be positive : " + overfetch);
+        }
+
+        this.overfetch = overfetch;
+    }
+
     public void clear() {
         tracker.flush();
     }
 
+    /** Gives a lazy view of features in cache intersecting e.
+     *
+     * @see GridFeatureCollection
+     */
     public FeatureCollection peek(Envelope e) {
-        FeatureCollectingVisitor v = new FeatureCollectingVisitor(this.getSchema());
-        this.tracker.intersectionQuery(convert(e), v);
-
-        return v.getCollection();
+        return new GridFeatureCollection(this.tracker, this.getSchema(), convert(e), Filter.INCLUDE);
     }
 
     public void put(FeatureCollection fc, Envelope e) throws CacheOversizedException {
@@ -148,8 +314,9 @@ public class GridFeatureCache extends AbstractFeatureCache {
     }
 
     public void remove(Envelope e) {
-        InvalidatingVisitor v = new InvalidatingVisitor();
-        this.tracker.intersectionQuery(convert(e), v);
+        InvalidatingVisitor v = new InvalidatingVisitor(this.tracker);
+        // invalidating clears node data, so nodes must not be shared with readers meanwhile
+        this.tracker.rangeQuery(GridTracker.IntersectionQuery, convert(e), v, true);
     }
 
     public Envelope getBounds() throws IOException {
@@ -164,30 +331,101 @@ public class GridFeatureCache extends AbstractFeatureCache {
         return this.fs.getCount(query);
     }
 
+    /** Adds features to the cache, evicting nodes as required to make room.
+     * Collection is read once, as sources may read features again on each pass :
+     * features are counted and their size estimated while they are wrapped for insertion,
+     * and reading stops as soon as collection is found too large to be cached.
+     */
     public void put(FeatureCollection fc) throws CacheOversizedException {
-        int size = fc.size();
+        // features are inserted in one batch, so that each tile is written once
+        List<GridData> data = new ArrayList<GridData>();
+        long bytes = 0;
+        FeatureIterator it = fc.features();
 
-        if (size > this.capacity) {
-            throw new CacheOversizedException("Cannot cache collection of size " + fc.size()
-                + " (capacity = " + capacity + " )");
+        try {
+            while (it.hasNext()) {
+                Feature f = it.next();
+                GridData gd = new GridData(f.hashCode(), convert(f.getBounds()), f);
+                data.add(gd);
+
+                if (data.size() > this.capacity) {
+                    throw new CacheOversizedException("Cannot cache collection of more than "
+                        + capacity + " features (capacity = " + capacity + " )");
+                }
+
+                if (byteCapacity > 0) {
+                    bytes += gd.getEstimatedSize();
+
+                    if (bytes > byteCapacity) {
+                        throw new CacheOversizedException(
+                            "Cannot cache collection of estimated size over " + byteCapacity
+                            + " bytes (capacity = " + byteCapacity + " bytes )");
+                    }
+                }
+            }
+        } finally {
+            fc.close(it);
         }
 
+        int size = data.size();
+        tracker.recount();
+
         //puts++ ;
+        // stop once every node has been evicted, even if statistics still exceed capacity
         while (tracker.getStatistics().getNumberOfData() > (capacity - size)) { // was capacity - fc.size()
-            tracker.policy.evict();
+            if (!tracker.policy.evict()) {
+                break;
+            }
 
             //evictions++ ;
             //System.out.println("Put #" + puts + " > number of evictions = " + evictions) ;
         }
 
+        while ((byteCapacity > 0) && (tracker.stats.getDataSize() > (byteCapacity - bytes))) {
+            if (!tracker.policy.evict()) {
+                break;
+            }
+        }
+
+        this.tracker.insertData(data);
+    }
+
+    /**
+     * @param fc
+     * @return estimated size of features in collection, as they will be accounted for in the index
+     */
+    long estimateSize(FeatureCollection fc) {
+        long bytes = 0;
         FeatureIterator it = fc.features();
 
         while (it.hasNext()) {
-            Feature f = it.next();
-            this.tracker.insertData(f, convert(f.getBounds()), f.hashCode());
+            bytes += (GridData.OVERHEAD + FeatureSizeEstimator.estimate(it.next()));
         }
 
         fc.close(it);
+
+        return bytes;
+    }
+
+    /**
+     * @return max estimated size of cached features, in bytes, or 0 if unbounded
+     */
+    public long getByteCapacity() {
+        return byteCapacity;
+    }
+
+    /** Bounds the cache by the estimated heap size of features,
+     * in addition to the number of features.
+     * Features count in every tile they are stored in, as they do for the feature capacity.
+     *
+     * @param byteCapacity in bytes, or 0 to disable this bound
+     */
+    public void setByteCapacity(long byteCapacity) {
+        if (byteCapacity < 0) {
+            throw new IllegalArgumentException("Capacity must be positive : " + byteCapacity);
+        }
+
+        this.byteCapacity = byteCapacity;
     }
 
     protected void register(BBOXImpl f) {
@@ -205,6 +443,11 @@ public class GridFeatureCache extends AbstractFeatureCache {
         sb.append("GridFeatureCache [");
         sb.append(" Source = " + this.fs);
         sb.append(" Capacity = " + this.capacity);
+
+        if (byteCapacity > 0) {
+            sb.append(" Byte capacity = " + this.byteCapacity);
+        }
+
         sb.append(" Nodes = " + this.tracker.stats.getNumberOfNodes());
         sb.append(" ]");
 
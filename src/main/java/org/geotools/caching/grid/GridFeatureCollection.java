@@ -0,0 +1,138 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.grid;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.opengis.filter.Filter;
+import org.geotools.caching.spatialindex.Data;
+import org.geotools.caching.spatialindex.Region;
+import org.geotools.feature.Feature;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureType;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.filter.FilterFactoryImpl;
+
+
+/** A view of the features in cache intersecting a region, which does not copy features.
+ * Tiles are read as the collection is iterated over, and features are filtered on the fly,
+ * so iterating requires memory for one tile only, whatever the number of features.
+ * Features stored in several tiles are returned once.
+ * Sub-collections are views as well, combining filters.
+ *
+ * The collection reflects the content of the cache while it is iterated over,
+ * and is not modifiable.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
+public class GridFeatureCollection extends AbstractFeatureCollection {
+    GridTracker tracker;
+    FeatureType type;
+    Region query;
+    Filter filter;
+
+    /**
+     * @param tracker
+     * @param type of features
+     * @param query
+     * @param filter features must match, or Filter.INCLUDE
+     */
+    GridFeatureCollection(GridTracker tracker, FeatureType type, Region query, Filter filter) {
+        super(type);
+        this.tracker = tracker;
+        this.type = type;
+        this.query = query;
+        this.filter = filter;
+    }
+
+    protected Iterator openIterator() {
+        return new FilteringIterator(tracker.dataIterator(query));
+    }
+
+    protected void closeIterator(Iterator close) {
+    }
+
+    /** Counts features by iterating over them, so this is O(n), and reads tiles again on each call.
+     * Size is not cached, as the collection is a live view :
+     * it may change from one call to the next, or while the collection is iterated over,
+     * if the cache is modified meanwhile. Callers needing a stable count, or calling size()
+     * repeatedly, should copy features to another collection first.
+     * Use isEmpty() rather than size() == 0, which stops at the first feature.
+     */
+    public int size() {
+        int size = 0;
+
+        for (Iterator it = openIterator(); it.hasNext();) {
+            it.next();
+            size++;
+        }
+
+        return size;
+    }
+
+    /** Looks for a first feature, without counting all of them.
+     */
+    public boolean isEmpty() {
+        return !openIterator().hasNext();
+    }
+
+    public FeatureCollection subCollection(Filter f) {
+        if (f == Filter.INCLUDE) {
+            return this;
+        }
+
+        Filter combined = (filter == Filter.INCLUDE) ? f : new FilterFactoryImpl().and(filter, f);
+
+        return new GridFeatureCollection(tracker, type, query, combined);
+    }
+
+    class FilteringIterator implements Iterator {
+        Iterator<Data> data;
+        Feature next = null;
+
+        FilteringIterator(Iterator<Data> data) {
+            this.data = data;
+        }
+
+        public boolean hasNext() {
+            while ((next == null) && data.hasNext()) {
+                Feature f = (Feature) data.next().getData();
+
+                if ((filter == Filter.INCLUDE) || filter.evaluate(f)) {
+                    next = f;
+                }
+            }
+
+            return next != null;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Feature f = next;
+            next = null;
+
+            return f;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
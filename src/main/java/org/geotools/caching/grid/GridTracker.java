@@ -15,49 +15,300 @@
  */
 package org.geotools.caching.grid;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.geotools.caching.EvictableTree;
 import org.geotools.caching.EvictionPolicy;
 import org.geotools.caching.LRUEvictionPolicy;
+import org.geotools.caching.spatialindex.Data;
+import org.geotools.caching.spatialindex.NearestNeighborComparator;
 import org.geotools.caching.spatialindex.Node;
 import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.PersistentStorage;
 import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.RegionNodeIdentifier;
 import org.geotools.caching.spatialindex.Shape;
 import org.geotools.caching.spatialindex.Storage;
+import org.geotools.caching.spatialindex.Visitor;
 import org.geotools.caching.spatialindex.grid.Grid;
+import org.geotools.caching.spatialindex.grid.GridData;
 import org.geotools.caching.spatialindex.grid.GridNode;
+import org.geotools.caching.spatialindex.grid.GridRootNode;
 import org.geotools.caching.spatialindex.store.MemoryStorage;
 
 
+/** A grid which keeps track of valid tiles, and evicts tiles when asked by the cache.
+ * The tracker may be accessed concurrently :
+ * <ul><li>the grid lock is held in shared mode by every operation, and exclusively by flush(),
+ *         which replaces all nodes,
+ *     <li>data stored at the root node is guarded by the root lock,
+ *     <li>data stored in tiles is guarded by striped locks, keyed by tile index,
+ *         so operations on different tiles may proceed in parallel.
+ * </ul>
+ * At most one node lock is held at a time, except when deleting data,
+ * where the root lock is acquired before tile locks.
+ * If the tracker is adaptive, tiles of sub-grids map to the stripe of the top-level tile
+ * they are part of, so a whole sub-grid is guarded by one lock.
+ * Bulk inserts may be run in parallel by an executor, one task per lock stripe.
+ * Sub-grids whose tiles have all been evicted are merged back into one tile.
+ * If storage is persistent, the tracker may be checkpointed,
+ * and a tracker created on a storage reopened from a checkpoint starts warm.
+ * Nodes lost by storage, for example when found corrupted, are replaced by invalid tiles,
+ * so they are fetched again from the source.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
 public class GridTracker extends Grid implements EvictableTree {
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    static final int PROPERTIES_VERSION = 1;
     GridTrackerStatistics stats;
     EvictionPolicy policy;
+    final ReentrantReadWriteLock gridLock = new ReentrantReadWriteLock();
+    final ReentrantReadWriteLock rootLock = new ReentrantReadWriteLock();
+    final ReentrantReadWriteLock[] tileLocks;
+
+    /**
+     * <code>true</code> if storage has lost nodes since statistics were last recounted
+     */
+    volatile boolean lost = false;
+
+    /**
+     * runs batches of bulk inserts in parallel, if not <code>null</code>
+     */
+    volatile ExecutorService executor = null;
 
     public GridTracker(Region mbr, int capacity, Storage store) {
+        this(mbr, capacity, store, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param mbr
+     * @param capacity
+     * @param store
+     * @param concurrencyLevel number of lock stripes shared by tiles
+     */
+    public GridTracker(Region mbr, int capacity, Storage store, int concurrencyLevel) {
+        if (concurrencyLevel < 1) {
+            throw new IllegalArgumentException("Concurrency level must be positive : "
+                + concurrencyLevel);
+        }
+
+        this.tileLocks = new ReentrantReadWriteLock[concurrencyLevel];
+
+        for (int i = 0; i < concurrencyLevel; i++) {
+            tileLocks[i] = new ReentrantReadWriteLock();
+        }
+
         this.dimension = mbr.getDimension();
         this.store = store;
         store.setParent(this);
         this.policy = new LRUEvictionPolicy(this);
+        this.stats = new GridTrackerStatistics();
+        super.stats = this.stats;
+
+        if (restore(mbr, capacity)) {
+            return;
+        }
 
         GridCacheRootNode root = new GridCacheRootNode(this, mbr, capacity);
         this.root = root.getIdentifier();
         root.split();
         writeNode(root);
-        this.stats = new GridTrackerStatistics();
-        super.stats = this.stats;
         this.stats.addToNodesCounter(root.getCapacity() + 1); // root has root.capacity nodes, +1 for root itself :)
     }
 
+    /** Saves the state of the tracker into its storage, so that the cache may be reopened warm :
+     * root node, validity of tiles, eviction order, statistics and adaptive settings.
+     * The checkpoint remains valid until the tracker is modified,
+     * so this is typically called before shutting down.
+     *
+     * @throws IOException
+     * @throws UnsupportedOperationException if storage is not persistent
+     */
+    public void checkpoint() throws IOException {
+        if (!(store instanceof PersistentStorage)) {
+            throw new UnsupportedOperationException("Storage is not persistent : " + store);
+        }
+
+        gridLock.writeLock().lock();
+
+        try {
+            GridCacheRootNode rootnode = (GridCacheRootNode) readNode(this.root);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeInt(PROPERTIES_VERSION);
+            oos.writeObject(rootnode.getShape());
+            oos.writeInt(rootnode.getCapacity());
+            oos.writeLong(stats.getNumberOfNodes());
+            oos.writeLong(stats.getNumberOfData());
+            oos.writeLong(stats.getDataSize());
+            oos.writeInt(split_threshold);
+            oos.writeInt(hot_threshold);
+            oos.writeInt(max_depth);
+
+            List<RegionNodeIdentifier> valid = new ArrayList<RegionNodeIdentifier>();
+
+            for (Iterator<RegionNodeIdentifier> it = node_ids.values().iterator(); it.hasNext();) {
+                RegionNodeIdentifier next = it.next();
+
+                if (next.isValid()) {
+                    valid.add(next);
+                }
+            }
+
+            writeIdentifiers(oos, valid);
+            writeIdentifiers(oos, policy.getAccessOrder());
+            oos.close();
+            store.put(rootnode); // root node is not kept in storage otherwise
+            ((PersistentStorage) store).checkpoint(baos.toByteArray());
+        } finally {
+            gridLock.writeLock().unlock();
+        }
+    }
+
+    static void writeIdentifiers(ObjectOutputStream oos, List<? extends NodeIdentifier> ids)
+        throws IOException {
+        oos.writeInt(ids.size());
+
+        for (Iterator<? extends NodeIdentifier> it = ids.iterator(); it.hasNext();) {
+            oos.writeObject(it.next().getShape());
+        }
+    }
+
+    static List<Region> readRegions(ObjectInputStream ois)
+        throws IOException, ClassNotFoundException {
+        int count = ois.readInt();
+        List<Region> regions = new ArrayList<Region>(count);
+
+        for (int i = 0; i < count; i++) {
+            regions.add((Region) ois.readObject());
+        }
+
+        return regions;
+    }
+
+    /** Restores the state saved by checkpoint(), if storage has been reopened from a checkpoint
+     * made by a tracker of same geometry. Otherwise, storage is cleared.
+     *
+     * @param mbr
+     * @param capacity
+     * @return <code>true</code> if state has been restored
+     */
+    boolean restore(Region mbr, int capacity) {
+        if (!(store instanceof PersistentStorage)) {
+            return false;
+        }
+
+        byte[] properties = ((PersistentStorage) store).getProperties();
+
+        if (properties == null) {
+            return false;
+        }
+
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(properties));
+
+            if ((ois.readInt() != PROPERTIES_VERSION) || !mbr.equals(ois.readObject())
+                    || (ois.readInt() != capacity)) {
+                store.clear();
+
+                return false;
+            }
+
+            long nodes = ois.readLong();
+            long data = ois.readLong();
+            long size = ois.readLong();
+            int splitThreshold = ois.readInt();
+            int hotThreshold = ois.readInt();
+            int maxDepth = ois.readInt();
+            List<Region> valid = readRegions(ois);
+            List<Region> order = readRegions(ois);
+            Node rootnode = store.get(new RegionNodeIdentifier(mbr));
+
+            if (!(rootnode instanceof GridCacheRootNode)) {
+                store.clear();
+
+                return false;
+            }
+
+            this.root = rootnode.getIdentifier();
+            writeNode(rootnode);
+            setAdaptive(splitThreshold, hotThreshold, maxDepth); // tiles may have been split
+
+            for (Iterator<Region> it = valid.iterator(); it.hasNext();) {
+                canonicalize(new RegionNodeIdentifier(it.next())).setValid(true);
+            }
+
+            for (Iterator<Region> it = order.iterator(); it.hasNext();) {
+                policy.access(canonicalize(new RegionNodeIdentifier(it.next())));
+            }
+
+            this.stats.addToNodesCounter((int) nodes);
+            this.stats.addToDataCounter((int) data);
+            this.stats.addToDataSizeCounter(size);
+
+            return true;
+        } catch (IOException e) {
+            store.clear();
+
+            return false;
+        } catch (ClassNotFoundException e) {
+            store.clear();
+
+            return false;
+        }
+    }
+
     NodeIdentifier getRoot() {
         return this.root;
     }
 
-    Stack searchMissingTiles(Region search) { // search must be within root mbr !
+    List<Region> searchMissingTiles(Region search) { // search must be within root mbr !
 
-        Stack<Shape> missing = new Stack<Shape>();
-        boolean foundValid = false;
+        List<Region> missing = new ArrayList<Region>();
 
         if (!this.root.isValid()) {
+            for (Iterator<NodeIdentifier> it = searchTiles(search).iterator(); it.hasNext();) {
+                NodeIdentifier next = it.next();
+
+                if (!next.isValid()) {
+                    missing.add((Region) next.getShape());
+                }
+            }
+        }
+
+        return missing;
+    }
+
+    /** Lists tiles covering search, in grid order, whether they are valid or not.
+     * Invalid tiles which have been split are replaced by the tiles of their sub-grid.
+     *
+     * @param search must be within root mbr !
+     * @return identifiers of tiles
+     */
+    List<NodeIdentifier> searchTiles(Region search) {
+        List<NodeIdentifier> tiles = new ArrayList<NodeIdentifier>();
+
+        gridLock.readLock().lock();
+
+        try {
             int[] cursor = new int[this.dimension];
             int[] mins = new int[this.dimension];
             int[] maxs = new int[this.dimension];
@@ -66,51 +317,688 @@ public class GridTracker extends Grid implements EvictableTree {
             GridCacheRootNode root = (GridCacheRootNode) readNode(this.root);
 
             do {
-                int nextid = root.gridIndexToNodeId(cursor);
-                NodeIdentifier nextnode = root.getChildIdentifier(nextid);
+                int index = root.gridIndexToNodeId(cursor);
+                NodeIdentifier tile = root.getChildIdentifier(index);
+
+                if (tile.isValid() || !isAdaptive()) {
+                    tiles.add(tile);
+                } else {
+                    Lock lock = tileLocks[index % tileLocks.length].readLock();
+                    lock.lock();
 
-                if (!nextnode.isValid()) {
-                    missing.add(nextnode.getShape());
-                } else if (!foundValid) {
-                    foundValid = true;
+                    try {
+                        collectTiles(tile, search, tiles);
+                    } finally {
+                        lock.unlock();
+                    }
                 }
             } while (increment(cursor, mins, maxs));
+        } finally {
+            gridLock.readLock().unlock();
         }
 
-        if (!foundValid && (missing.size() > 1)) {
-            Region r1 = (Region) missing.pop();
-            Region r2 = (Region) missing.get(0);
-            missing = new Stack<Shape>();
-            missing.add(r1.combinedRegion(r2));
+        return tiles;
+    }
+
+    /** Adds tile to tiles, or the tiles of its sub-grid intersecting search,
+     * if tile is invalid and has been split.
+     * Caller must hold the lock of tile.
+     */
+    void collectTiles(NodeIdentifier tile, Region search, List<NodeIdentifier> tiles) {
+        Node node = tile.isValid() ? null : super.readNode(tile);
+
+        if (!(node instanceof GridRootNode)) {
+            tiles.add(tile);
+
+            return;
         }
 
-        return missing;
+        GridRootNode subgrid = (GridRootNode) node;
+        int[] cursor = new int[this.dimension];
+        int[] mins = new int[this.dimension];
+        int[] maxs = new int[this.dimension];
+        findMatchingTiles(subgrid, search, cursor, mins, maxs);
+
+        do {
+            collectTiles(subgrid.getChildIdentifier(subgrid.gridIndexToNodeId(cursor)), search,
+                tiles);
+        } while (increment(cursor, mins, maxs));
     }
 
     public void flush() {
-        GridCacheRootNode oldroot = (GridCacheRootNode) readNode(this.root);
-        int capacity = oldroot.getCapacity();
-        Region mbr = new Region((Region) oldroot.getShape());
-        GridCacheRootNode root = new GridCacheRootNode(this, mbr, capacity);
-        this.store.clear();
-        writeNode(root);
-        this.root = root.getIdentifier();
-        this.stats.reset();
-        root.split();
-        this.stats.addToNodesCounter(root.getCapacity() + 1);
+        gridLock.writeLock().lock();
+
+        try {
+            GridCacheRootNode oldroot = (GridCacheRootNode) readNode(this.root);
+            int capacity = oldroot.getCapacity();
+            Region mbr = new Region((Region) oldroot.getShape());
+            GridCacheRootNode root = new GridCacheRootNode(this, mbr, capacity);
+            this.store.clear();
+            writeNode(root);
+            this.root = root.getIdentifier();
+            this.stats.reset();
+            root.split();
+            this.stats.addToNodesCounter(root.getCapacity() + 1);
+        } finally {
+            gridLock.writeLock().unlock();
+        }
     }
 
     public int getEvictions() {
         return stats.getEvictions();
     }
 
-    public void evict(NodeIdentifier node) {
-        GridNode nodeToEvict = (GridNode) readNode(node); // FIXME: avoid to read node before eviction
-        int ret = nodeToEvict.getDataCount();
-        nodeToEvict.clear();
-        nodeToEvict.getIdentifier().setValid(false);
-        this.stats.addToDataCounter(-ret);
-        this.stats.addToEvictionCounter(1);
+    /** Drops data held by node, and marks it as invalid.
+     * Data stored at the root node are evicted like data of any tile.
+     *
+     * @param node
+     * @return <code>false</code> if node is not part of the grid anymore
+     */
+    public boolean evict(NodeIdentifier node) {
+        gridLock.readLock().lock();
+
+        try {
+            Lock lock = lockFor(node).writeLock(); // the root lock if node is the root
+            lock.lock();
+
+            try {
+                // tile of a sub-grid merged since last accessed
+                if (!node.equals(this.root) && (findParent(node) == null)) {
+                    return false;
+                }
+
+                // read and write without touching the eviction policy,
+                // which has already dropped this node from its queue
+                GridNode nodeToEvict = (GridNode) super.readNode(node);
+
+                clear(nodeToEvict);
+                this.stats.addToEvictionCounter(1);
+
+                if (isAdaptive() && !node.equals(this.root)) {
+                    mergeIfCold(node);
+                }
+
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            gridLock.readLock().unlock();
+        }
+    }
+
+    /** Drops data held by node, marks node as invalid, and stores it back.
+     * Caller must hold the lock of this node.
+     *
+     * @param node
+     */
+    void clear(GridNode node) {
+        int count = node.getDataCount();
+        long size = node.getDataSize();
+        node.clear();
+        node.getIdentifier().setValid(false);
+
+        if (!node.getIdentifier().equals(this.root)) {
+            invalidateParents(node.getIdentifier());
+        }
+
+        super.writeNode(node);
+        this.stats.addToDataCounter(-count);
+        this.stats.addToDataSizeCounter(-size);
+    }
+
+    /** Merges the sub-grid containing tile back into one tile,
+     * if all tiles of the sub-grid are empty and invalid, ie they have been evicted or invalidated.
+     * Caller must hold the lock of tile.
+     *
+     * @param tile
+     */
+    void mergeIfCold(NodeIdentifier tile) {
+        GridRootNode subgrid = findSubGrid(tile);
+
+        if (subgrid == null) {
+            return;
+        }
+
+        GridNode[] tiles = new GridNode[subgrid.getChildrenCount()];
+
+        for (int i = 0; i < tiles.length; i++) {
+            NodeIdentifier next = subgrid.getChildIdentifier(i);
+            tiles[i] = (GridNode) super.readNode(next);
+
+            if ((tiles[i] instanceof GridRootNode) || (tiles[i].getDataCount() > 0)
+                    || next.isValid()) {
+                return;
+            }
+        }
+
+        mergeSubGrid(subgrid, tiles);
+    }
+
+    /**
+     * @param tile
+     * @return the sub-grid tile is part of, or <code>null</code> if tile is a top-level tile
+     */
+    GridRootNode findSubGrid(NodeIdentifier tile) {
+        GridRootNode parent = findParent(tile);
+
+        if ((parent == null) || parent.getIdentifier().equals(this.root)) {
+            return null;
+        }
+
+        return parent;
+    }
+
+    /**
+     * @param tile
+     * @return the root node or the sub-grid tile is part of,
+     *         or <code>null</code> if tile is not part of the grid anymore
+     */
+    GridRootNode findParent(NodeIdentifier tile) {
+        return findParent(tile, false);
+    }
+
+    /** Marks as invalid the root and the sub-grids containing tile,
+     * once tile has been invalidated, as they do not cover valid data only anymore.
+     *
+     * @param tile
+     */
+    void invalidateParents(NodeIdentifier tile) {
+        findParent(tile, true);
+    }
+
+    GridRootNode findParent(NodeIdentifier tile, boolean invalidate) {
+        GridRootNode node = (GridRootNode) super.readNode(this.root);
+
+        if (invalidate) {
+            this.root.setValid(false);
+        }
+
+        double[] center = tile.getShape().getCenter();
+        Region point = new Region(center, center);
+        int[] cursor = new int[this.dimension];
+        int[] mins = new int[this.dimension];
+        int[] maxs = new int[this.dimension];
+
+        while (true) {
+            findMatchingTiles(node, point, cursor, mins, maxs);
+
+            NodeIdentifier child = node.getChildIdentifier(node.gridIndexToNodeId(cursor));
+
+            if (child.equals(tile)) {
+                return node;
+            }
+
+            Node next = super.readNode(child);
+
+            if (!(next instanceof GridRootNode)) {
+                return null;
+            }
+
+            if (invalidate) {
+                child.setValid(false);
+            }
+
+            node = (GridRootNode) next;
+        }
+    }
+
+    /** Replaces a lost node, writing the replacement only if the current thread holds
+     * an exclusive lock on the node. Queries hold shared locks only, so they get the replacement
+     * without writing it, and concurrent queries do not race to write it : it is written
+     * by the next thread reading the node exclusively, such as an insertion or recount().
+     */
+    @Override
+    protected Node recoverNode(NodeIdentifier id) {
+        lost = true;
+
+        Node node;
+
+        if (gridLock.isWriteLockedByCurrentThread()
+                || lockFor(id).isWriteLockedByCurrentThread()) {
+            node = super.recoverNode(id);
+        } else {
+            node = createLostNode(id);
+        }
+
+        invalidateParents(id);
+
+        return node;
+    }
+
+    /** Recomputes data statistics, if some nodes have been lost by storage since last call,
+     * as their data were still accounted for.
+     * The cache calls this before deciding to evict, so that lost data do not take room.
+     */
+    public void recount() {
+        if (!lost) {
+            return;
+        }
+
+        gridLock.writeLock().lock();
+
+        try {
+            int count = 0;
+            long size = 0;
+            Stack<Node> nodes = new Stack<Node>();
+            nodes.push(super.readNode(this.root));
+
+            while (!nodes.isEmpty()) {
+                GridNode node = (GridNode) nodes.pop();
+                count += node.getDataCount();
+                size += node.getDataSize();
+
+                for (int i = 0; i < node.getChildrenCount(); i++) {
+                    nodes.push(super.readNode(node.getChildIdentifier(i)));
+                }
+            }
+
+            stats.addToDataCounter(count - (int) stats.getNumberOfData());
+            stats.addToDataSizeCounter(size - stats.getDataSize());
+            // nodes lost meanwhile have been replaced above, as the grid is locked exclusively
+            lost = false;
+        } finally {
+            gridLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected GridRootNode createSubGrid(Region mbr, int[] tiles_number, double tiles_size) {
+        return new GridCacheRootNode(this, mbr, tiles_number, tiles_size);
+    }
+
+    @Override
+    public void insertData(Object data, Shape shape, int id) {
+        gridLock.readLock().lock();
+
+        try {
+            super.insertData(data, shape, id);
+        } finally {
+            gridLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void _insertData(NodeIdentifier n, Object data, Shape shape, int id) {
+        Lock lock = lockFor(n).writeLock();
+        lock.lock();
+
+        try {
+            super._insertData(n, data, shape, id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void insertData(List<GridData> data) {
+        gridLock.readLock().lock();
+
+        try {
+            super.insertData(data);
+        } finally {
+            gridLock.readLock().unlock();
+        }
+    }
+
+    /** Lets bulk inserts run in parallel, using the given executor.
+     * Once data are partitioned by top-level tile, tiles are grouped by lock stripe,
+     * and each group is inserted by a separate task, so tasks never wait for one another.
+     * Executor is not shut down by the tracker.
+     *
+     * @param executor or <code>null</code> to insert batches in the calling thread
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    @Override
+    protected void insertDataBatches(final GridRootNode node,
+        SortedMap<Integer, List<GridData>> tiles) {
+        ExecutorService executor = this.executor;
+
+        // tiles of a sub-grid share one lock stripe, and so are inserted sequentially
+        if ((executor == null) || !node.getIdentifier().equals(this.root) || (tiles.size() < 2)) {
+            super.insertDataBatches(node, tiles);
+
+            return;
+        }
+
+        List<SortedMap<Integer, List<GridData>>> stripes =
+            new ArrayList<SortedMap<Integer, List<GridData>>>(tileLocks.length);
+
+        for (int i = 0; i < tileLocks.length; i++) {
+            stripes.add(null);
+        }
+
+        for (Iterator<Map.Entry<Integer, List<GridData>>> it = tiles.entrySet().iterator();
+                it.hasNext();) {
+            Map.Entry<Integer, List<GridData>> next = it.next();
+            int stripe = next.getKey().intValue() % tileLocks.length;
+
+            if (stripes.get(stripe) == null) {
+                stripes.set(stripe, new TreeMap<Integer, List<GridData>>());
+            }
+
+            stripes.get(stripe).put(next.getKey(), next.getValue());
+        }
+
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < stripes.size(); i++) {
+            final SortedMap<Integer, List<GridData>> stripe = stripes.get(i);
+
+            if (stripe != null) {
+                tasks.add(executor.submit(new Runnable() {
+                        public void run() {
+                            GridTracker.super.insertDataBatches(node, stripe);
+                        }
+                    }));
+            }
+        }
+
+        // wait for every task, even if one fails, as tasks still use the grid
+        Throwable failure = null;
+        boolean interrupted = false;
+
+        for (int i = 0; i < tasks.size(); i++) {
+            while (true) {
+                try {
+                    tasks.get(i).get();
+
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+
+                    break;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    @Override
+    protected void insertDataBatch(NodeIdentifier n, List<GridData> batch) {
+        Lock lock = lockFor(n).writeLock();
+        lock.lock();
+
+        try {
+            super.insertDataBatch(n, batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteData(Shape shape, int id) {
+        gridLock.readLock().lock();
+
+        try {
+            return super.deleteData(shape, id);
+        } finally {
+            gridLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected boolean deleteData(NodeIdentifier nodeid, Shape shape, int id) {
+        Lock lock = lockFor(nodeid).writeLock();
+        lock.lock();
+
+        try {
+            return super.deleteData(nodeid, shape, id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Range queries lock the root node, then each tile while it is visited,
+     * in shared mode, or in exclusive mode if visitor modifies nodes.
+     */
+    @Override
+    protected void rangeQuery(int type, Shape query, Visitor v, boolean exclusive) {
+        gridLock.readLock().lock();
+
+        try {
+            super.rangeQuery(type, query, v, exclusive);
+        } finally {
+            gridLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected GridRootNode visitRoot(int type, Shape query, Visitor v, boolean exclusive) {
+        Lock lock = exclusive ? rootLock.writeLock() : rootLock.readLock();
+        lock.lock();
+
+        try {
+            return super.visitRoot(type, query, v, exclusive);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void visitTile(NodeIdentifier tile, TilePath path, int type, Shape query, Visitor v,
+        boolean exclusive) {
+        ReentrantReadWriteLock tileLock = lockFor(tile);
+        Lock lock = exclusive ? tileLock.writeLock() : tileLock.readLock();
+        lock.lock();
+
+        try {
+            super.visitTile(tile, path, type, query, v, exclusive);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Same as nearestNeighborQuery(k, query, v, nnc),
+     * and tells whether the answer is complete with regards to the source :
+     * the answer is complete if every tile which may hold data as near to query as the k-th data is valid,
+     * or, if less than k data were found, if every tile is valid.
+     *
+     * @param k
+     * @param query
+     * @param v
+     * @param nnc
+     * @return <code>true</code> if the answer is fully covered by valid tiles
+     */
+    public boolean nearestNeighborQueryCovered(int k, Shape query, Visitor v,
+        NearestNeighborComparator nnc) {
+        gridLock.readLock().lock();
+
+        try {
+            List<NodeIdentifier> tiles = nearestNeighbors(k, query, v, nnc);
+
+            if (this.root.isValid()) {
+                return true;
+            }
+
+            for (Iterator<NodeIdentifier> it = tiles.iterator(); it.hasNext();) {
+                if (!it.next().isValid()) {
+                    return false;
+                }
+            }
+
+            return true;
+        } finally {
+            gridLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected List<NodeIdentifier> nearestNeighbors(int k, Shape query, Visitor v,
+        NearestNeighborComparator nnc) {
+        gridLock.readLock().lock();
+
+        try {
+            return super.nearestNeighbors(k, query, v, nnc);
+        } finally {
+            gridLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void visitNearestRoot(GridRootNode rootnode, Neighbors neighbors, Visitor v) {
+        rootLock.readLock().lock();
+
+        try {
+            super.visitNearestRoot(rootnode, neighbors, v);
+        } finally {
+            rootLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void visitNearestTile(NodeIdentifier tile, Neighbors neighbors, Visitor v) {
+        Lock lock = lockFor(tile).readLock();
+        lock.lock();
+
+        try {
+            super.visitNearestTile(tile, neighbors, v);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Iterates lazily over data intersecting query, one tile at a time :
+     * data of a tile are read holding the lock of the tile, when the iterator reaches that tile,
+     * so iterating requires memory for one tile only, whatever the size of the result.
+     * Data stored in several tiles are returned only once, from their reference tile.
+     * Iteration reflects the content of the cache at the time tiles are reached.
+     *
+     * @param query
+     * @return an iterator over Data
+     */
+    Iterator<Data> dataIterator(Region query) {
+        return new DataIterator(query);
+    }
+
+    /** Collects data intersecting query in tile at given index of the grid,
+     * or in tiles of its sub-grid if it has been split, holding the lock of the tile.
+     *
+     * @param cursor index of tile, or <code>null</code> to collect data stored at root node
+     * @param query
+     * @param data where to add data found
+     */
+    void collectData(int[] cursor, Shape query, List<Data> data) {
+        gridLock.readLock().lock();
+
+        try {
+            GridCacheRootNode rootnode = (GridCacheRootNode) readNode(this.root);
+
+            if (cursor == null) {
+                rootLock.readLock().lock();
+
+                try {
+                    collect(rootnode, null, query, data);
+                } finally {
+                    rootLock.readLock().unlock();
+                }
+            } else {
+                int index = rootnode.gridIndexToNodeId(cursor);
+                Lock lock = tileLocks[index % tileLocks.length].readLock();
+                lock.lock();
+
+                try {
+                    TilePath path = new TilePath(query);
+                    path.push(rootnode, cursor);
+                    collect(readNode(rootnode.getChildIdentifier(index)), path, query, data);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            gridLock.readLock().unlock();
+        }
+    }
+
+    /** Collects data of node for which node is the reference tile,
+     * or data of tiles of its sub-grid if node is a split tile.
+     * Caller must hold the lock of node.
+     *
+     * @param node
+     * @param path grids and indexes of tiles leading to node,
+     *        or <code>null</code> if node is the root node
+     * @param query
+     * @param data
+     */
+    void collect(Node node, TilePath path, Shape query, final List<Data> data) {
+        visitData(node, path,
+            new Visitor() {
+                public void visitData(Data d) {
+                    data.add(d);
+                }
+
+                public void visitNode(Node n) {
+                }
+
+                public boolean isDataVisitor() {
+                    return true;
+                }
+            }, query, IntersectionQuery);
+
+        if ((path != null) && (node instanceof GridRootNode)) {
+            GridRootNode subgrid = (GridRootNode) node;
+            int[] mins = new int[this.dimension];
+            int[] maxs = new int[this.dimension];
+            int[] subcursor = new int[this.dimension];
+            findMatchingTiles(subgrid, query, subcursor, mins, maxs);
+            path.push(subgrid, subcursor);
+
+            do {
+                collect(readNode(subgrid.getChildIdentifier(subgrid.gridIndexToNodeId(subcursor))),
+                    path, query, data);
+            } while (increment(subcursor, mins, maxs));
+
+            path.pop();
+        }
+    }
+
+    /** Lock guarding the given node.
+     * Tiles are mapped to stripes by their index in the grid, so neighbour tiles use different locks.
+     *
+     * @param id
+     * @return the lock of the root node, or the stripe covering this tile
+     */
+    ReentrantReadWriteLock lockFor(NodeIdentifier id) {
+        if (id.equals(this.root)) {
+            return rootLock;
+        }
+
+        return tileLocks[tileIndex(id) % tileLocks.length];
+    }
+
+    /** Computes the index of a tile in the grid from its identifier.
+     * This runs on every lock acquisition, so it reads coordinates of the identifier in place.
+     * Tiles of sub-grids get the index of the top-level tile they are part of.
+     *
+     * @param id of a tile
+     * @return index of tile, as given by GridRootNode.gridIndexToNodeId()
+     */
+    int tileIndex(NodeIdentifier id) {
+        GridRootNode rootnode = (GridRootNode) super.readNode(this.root);
+
+        return rootnode.gridIndexOf((RegionNodeIdentifier) id);
     }
 
     @Override
@@ -129,26 +1017,84 @@ public class GridTracker extends Grid implements EvictableTree {
     class GridTrackerStatistics extends ThisStatistics {
         int stats_evictions = 0;
 
-        public void addToEvictionCounter(int count) {
+        public synchronized void addToEvictionCounter(int count) {
             stats_evictions += count;
         }
 
-        public int getEvictions() {
+        public synchronized int getEvictions() {
             return stats_evictions;
         }
 
         @Override
-        public void reset() {
+        public synchronized void reset() {
             stats_evictions = 0;
             super.reset();
         }
 
         @Override
-        public String toString() {
+        public synchronized String toString() {
             StringBuffer sb = new StringBuffer(super.toString());
             sb.append(" ; Evictions = " + stats_evictions);
 
             return sb.toString();
         }
     }
+
+    /** Iterator walking tiles matching query in grid order, after data stored at root node.
+     *
+     * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+     *
+     */
+    class DataIterator implements Iterator<Data> {
+        final Region query;
+        final int[] cursor = new int[dimension];
+        final int[] mins = new int[dimension];
+        final int[] maxs = new int[dimension];
+        final ArrayList<Data> buffer = new ArrayList<Data>();
+        int next = 0;
+        boolean started = false;
+        boolean done;
+
+        DataIterator(Region query) {
+            this.query = query;
+            this.done = !query.intersects(root.getShape());
+        }
+
+        public boolean hasNext() {
+            while ((next == buffer.size()) && !done) {
+                buffer.clear();
+                next = 0;
+
+                if (!started) {
+                    collectData(null, query, buffer);
+                    gridLock.readLock().lock();
+
+                    try {
+                        findMatchingTiles(query, cursor, mins, maxs);
+                    } finally {
+                        gridLock.readLock().unlock();
+                    }
+
+                    started = true;
+                } else {
+                    collectData(cursor, query, buffer);
+                    done = !increment(cursor, mins, maxs);
+                }
+            }
+
+            return next < buffer.size();
+        }
+
+        public Data next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return buffer.get(next++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -21,6 +21,15 @@ import org.geotools.caching.spatialindex.Visitor;
 
 
 class InvalidatingVisitor implements Visitor {
+    GridTracker tracker;
+
+    /**
+     * @param tracker whose nodes are visited, and which keeps track of data count
+     */
+    InvalidatingVisitor(GridTracker tracker) {
+        this.tracker = tracker;
+    }
+
     public boolean isDataVisitor() {
         return false;
     }
@@ -33,8 +42,7 @@ class InvalidatingVisitor implements Visitor {
         n.getIdentifier().setValid(false);
 
         if (n instanceof GridCacheNode) {
-            GridCacheNode node = (GridCacheNode) n;
-            node.clear();
+            tracker.clear((GridCacheNode) n);
         }
     }
 }
@@ -0,0 +1,300 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.grid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.SpatialIndex;
+
+
+/** Computes a small set of regions covering a set of tiles,
+ * in order to query the source for missing tiles with as few queries as possible.
+ * Tiles aligned along one dimension are first merged into larger rectangles, which covers exactly the same space ;
+ * then the pair of regions whose bounding box covers the least space not in tiles is merged,
+ * until the number of regions is below a given bound,
+ * and merging would cover more space not in tiles than the allowed over-fetch ratio.
+ * Merged regions absorb any other region they overlap, so regions in the cover never overlap.
+ * Large scattered sets of tiles, which cannot be merged exactly, are first grouped into strips,
+ * so that computing the cover stays cheap whatever the number of tiles.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
+public class RegionCover {
+    /**
+     * number of blocks above which blocks are first grouped into strips
+     */
+    static final int MAX_BLOCKS = 64;
+
+    /**
+     * @param tiles not overlapping each other
+     * @param maxRegions number of regions above which regions are merged whatever space they cover
+     * @param overfetch ratio of space not in tiles that may be covered by merged regions,
+     *        relative to space in tiles
+     * @return regions covering all tiles
+     */
+    public static List<Region> cover(List<Region> tiles, int maxRegions, double overfetch) {
+        List<Block> blocks = new ArrayList<Block>(tiles.size());
+
+        for (Iterator<Region> it = tiles.iterator(); it.hasNext();) {
+            Region r = it.next();
+            blocks.add(new Block(r, r.getArea()));
+        }
+
+        if (!blocks.isEmpty()) {
+            int dims = blocks.get(0).region.getDimension();
+
+            for (int d = 0; d < dims; d++) {
+                blocks = mergeAligned(blocks, d);
+            }
+        }
+
+        if (blocks.size() > MAX_BLOCKS) {
+            blocks = strips(blocks, Math.max(1, Math.min(maxRegions, MAX_BLOCKS)));
+        }
+
+        while (blocks.size() > 1) {
+            Block a = null;
+            Block b = null;
+            double minWaste = Double.POSITIVE_INFINITY;
+
+            for (int i = 0; i < blocks.size(); i++) {
+                for (int j = i + 1; j < blocks.size(); j++) {
+                    Block bi = blocks.get(i);
+                    Block bj = blocks.get(j);
+                    double waste = combinedArea(bi.region, bj.region) - bi.missing - bj.missing;
+
+                    if (waste < minWaste) {
+                        minWaste = waste;
+                        a = bi;
+                        b = bj;
+                    }
+                }
+            }
+
+            List<Block> merged = new ArrayList<Block>(blocks);
+            Block m = merge(merged, a, b);
+
+            if ((blocks.size() > maxRegions)
+                    || (m.region.getArea() <= ((1 + overfetch) * m.missing))) {
+                blocks = merged;
+            } else {
+                break;
+            }
+        }
+
+        List<Region> cover = new ArrayList<Region>(blocks.size());
+
+        for (Iterator<Block> it = blocks.iterator(); it.hasNext();) {
+            cover.add(it.next().region);
+        }
+
+        return cover;
+    }
+
+    /** Replaces a and b in blocks by a block covering both,
+     * and any other block it overlaps.
+     *
+     * @return the new block
+     */
+    static Block merge(List<Block> blocks, Block a, Block b) {
+        blocks.remove(a);
+        blocks.remove(b);
+
+        Block m = new Block(a.region.combinedRegion(b.region), a.missing + b.missing);
+        absorb(blocks, m);
+
+        return m;
+    }
+
+    /** Adds m to blocks, after growing m to cover any block it overlaps,
+     * and removing those blocks.
+     */
+    static void absorb(List<Block> blocks, Block m) {
+        boolean grown = true;
+
+        while (grown) {
+            grown = false;
+
+            for (Iterator<Block> it = blocks.iterator(); it.hasNext();) {
+                Block next = it.next();
+
+                if (overlaps(m.region, next.region)) {
+                    m.region = m.region.combinedRegion(next.region);
+                    m.missing += next.missing;
+                    it.remove();
+                    grown = true;
+                }
+            }
+        }
+
+        blocks.add(m);
+    }
+
+    /** Reduces a large set of blocks to at most count strips,
+     * as merging pairs of blocks takes cubic time in the number of blocks.
+     * Blocks are grouped by the band, along the last dimension, holding their center,
+     * and strips overlapping each other are merged.
+     *
+     * @param blocks
+     * @param count number of bands
+     * @return blocks covering the same blocks, not overlapping each other
+     */
+    static List<Block> strips(List<Block> blocks, int count) {
+        int d = blocks.get(0).region.getDimension() - 1;
+        double low = Double.POSITIVE_INFINITY;
+        double high = Double.NEGATIVE_INFINITY;
+
+        for (Iterator<Block> it = blocks.iterator(); it.hasNext();) {
+            Region next = it.next().region;
+            low = Math.min(low, next.getLow(d));
+            high = Math.max(high, next.getHigh(d));
+        }
+
+        double height = (high - low) / count;
+        Block[] strips = new Block[count];
+
+        for (Iterator<Block> it = blocks.iterator(); it.hasNext();) {
+            Block next = it.next();
+            double center = (next.region.getLow(d) + next.region.getHigh(d)) / 2;
+            int k = (height > 0) ? (int) ((center - low) / height) : 0;
+            k = Math.max(0, Math.min(count - 1, k));
+
+            if (strips[k] == null) {
+                strips[k] = new Block(new Region(next.region), next.missing);
+            } else {
+                strips[k].region = strips[k].region.combinedRegion(next.region);
+                strips[k].missing += next.missing;
+            }
+        }
+
+        List<Block> merged = new ArrayList<Block>(count);
+
+        for (int k = 0; k < count; k++) {
+            if (strips[k] != null) {
+                absorb(merged, strips[k]);
+            }
+        }
+
+        return merged;
+    }
+
+    /**
+     * @return area of the bounding box of r1 and r2, computed without allocating it
+     */
+    static double combinedArea(Region r1, Region r2) {
+        double area = 1;
+
+        for (int i = 0; i < r1.getDimension(); i++) {
+            area *= (Math.max(r1.getHigh(i), r2.getHigh(i)) - Math.min(r1.getLow(i), r2.getLow(i)));
+        }
+
+        return area;
+    }
+
+    /** Merges blocks which have the same extent in every dimension but d,
+     * and touch each other in dimension d.
+     */
+    static List<Block> mergeAligned(List<Block> blocks, final int d) {
+        Collections.sort(blocks,
+            new Comparator<Block>() {
+                public int compare(Block b1, Block b2) {
+                    Region r1 = b1.region;
+                    Region r2 = b2.region;
+
+                    for (int i = 0; i < r1.getDimension(); i++) {
+                        if (i != d) {
+                            int c = Double.compare(r1.getLow(i), r2.getLow(i));
+
+                            if (c == 0) {
+                                c = Double.compare(r1.getHigh(i), r2.getHigh(i));
+                            }
+
+                            if (c != 0) {
+                                return c;
+                            }
+                        }
+                    }
+
+                    return Double.compare(r1.getLow(d), r2.getLow(d));
+                }
+            });
+
+        List<Block> merged = new ArrayList<Block>(blocks.size());
+        Block current = null;
+
+        for (Iterator<Block> it = blocks.iterator(); it.hasNext();) {
+            Block next = it.next();
+
+            if ((current != null) && aligned(current.region, next.region, d)) {
+                current = new Block(current.region.combinedRegion(next.region),
+                        current.missing + next.missing);
+                merged.set(merged.size() - 1, current);
+            } else {
+                current = next;
+                merged.add(current);
+            }
+        }
+
+        return merged;
+    }
+
+    static boolean aligned(Region r1, Region r2, int d) {
+        for (int i = 0; i < r1.getDimension(); i++) {
+            if ((i != d)
+                    && (!same(r1.getLow(i), r2.getLow(i)) || !same(r1.getHigh(i), r2.getHigh(i)))) {
+                return false;
+            }
+        }
+
+        return same(r1.getHigh(d), r2.getLow(d));
+    }
+
+    static boolean overlaps(Region r1, Region r2) {
+        for (int i = 0; i < r1.getDimension(); i++) {
+            double low = Math.max(r1.getLow(i), r2.getLow(i));
+            double high = Math.min(r1.getHigh(i), r2.getHigh(i));
+
+            if ((high - low) <= (SpatialIndex.EPSILON * Math.max(1, Math.abs(high)))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    static boolean same(double a, double b) {
+        return Math.abs(a - b) <= (SpatialIndex.EPSILON * Math.max(1, Math.abs(a)));
+    }
+
+    static class Block {
+        Region region;
+
+        /**
+         * space covered by tiles in this block
+         */
+        double missing;
+
+        Block(Region region, double missing) {
+            this.region = region;
+            this.missing = missing;
+        }
+    }
+}
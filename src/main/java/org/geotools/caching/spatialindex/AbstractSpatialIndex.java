@@ -17,7 +17,6 @@ package org.geotools.caching.spatialindex;
 
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Stack;
 
 
 /** This is a base class for implementing spatial indexes.
@@ -106,62 +105,71 @@ public abstract class AbstractSpatialIndex implements SpatialIndex {
     }
 
     /** Common algorithm used by both intersection and containment queries.
+     * Nodes are visited depth first, parent before children.
+     * Traversal state is kept in arrays local to this method :
+     * the path of nodes from root, and the index of the next child to examine at each level,
+     * so concurrent or nested queries do not interfere.
      *
      * @param type
      * @param query
      * @param v
-     *
-     * TODO: remember child index where to search from on next passage
      */
     protected void rangeQuery(int type, Shape query, Visitor v) {
-        NodeIdentifier current = this.root;
-        Node currentNode = null;
-        current.setVisited(false);
-
-        Stack<Node> nodes = new Stack<Node>();
-
-        if (query.intersects(current.getShape())) {
-            currentNode = readNode(current);
-            nodes.push(currentNode);
+        if (!this.root.intersects(query)) {
+            return;
         }
 
-        while (!nodes.isEmpty()) {
-            currentNode = (Node) nodes.pop();
-            current = currentNode.getIdentifier();
+        Node[] path = new Node[8];
+        int[] next = new int[8];
+        int top = 0;
+        path[0] = readNode(this.root);
+        visitRangeNode(path[0], type, query, v);
 
-            if (!current.isVisited()) {
-                v.visitNode(currentNode);
+        while (top >= 0) {
+            Node node = path[top];
+            int count = node.getChildrenCount();
+            int i = next[top];
 
-                for (int i = 0; i < currentNode.getChildrenCount(); i++) {
-                    currentNode.getChildIdentifier(i).setVisited(false);
-                }
+            while ((i < count) && !node.getChildIdentifier(i).intersects(query)) {
+                i++;
+            }
 
-                if (v.isDataVisitor()) { // skip if visitor does nothing with data
-                                         // visitData check for actual containement or intersection
-                    visitData(currentNode, v, query, type);
-                }
+            if (i == count) { // done with this node
+                path[top] = null;
+                top--;
 
-                current.setVisited(true);
+                continue;
             }
 
-            // TODO: start from last child + 1 rather than from 0
-            for (int i = 0; i < currentNode.getChildrenCount(); i++) {
-                NodeIdentifier child = currentNode.getChildIdentifier(i);
-
-                if (!child.isVisited()) {
-                    if (query.intersects(child.getShape())) {
-                        // we will go back to this one later to examine other children
-                        nodes.push(currentNode);
-                        // meanwhile, we put one child at a time into stack, so we do not waste space
-                        nodes.push(readNode(child));
-
-                        break;
-                    } else {
-                        // we won't have to compute intersection again and again
-                        child.setVisited(true);
-                    }
-                }
+            next[top] = i + 1;
+
+            Node child = readNode(node.getChildIdentifier(i));
+            visitRangeNode(child, type, query, v);
+            top++;
+
+            if (top == path.length) {
+                Node[] newpath = new Node[2 * top];
+                System.arraycopy(path, 0, newpath, 0, top);
+                path = newpath;
+
+                int[] newnext = new int[2 * top];
+                System.arraycopy(next, 0, newnext, 0, top);
+                next = newnext;
             }
+
+            path[top] = child;
+            next[top] = 0;
+        }
+    }
+
+    /** Visits a node matching a range query, and its data if visitor is interested in data.
+     */
+    protected void visitRangeNode(Node node, int type, Shape query, Visitor v) {
+        v.visitNode(node);
+
+        if (v.isDataVisitor()) { // skip if visitor does nothing with data
+                                 // visitData check for actual containement or intersection
+            visitData(node, v, query, type);
         }
     }
 
@@ -183,7 +191,7 @@ public abstract class AbstractSpatialIndex implements SpatialIndex {
     }
 
     public void nearestNeighborQuery(int k, Shape query, Visitor v) {
-        // TODO Auto-generated method stub
+        nearestNeighborQuery(k, query, v, new NNComparator());
     }
 
     public void queryStrategy(QueryStrategy qs) {
@@ -271,7 +279,7 @@ public abstract class AbstractSpatialIndex implements SpatialIndex {
         }
 
         ret = store.get(id);
-        stats.stats_reads++;
+        stats.addToReadsCounter(1);
 
         for (Iterator it = readNodeCommands.iterator(); it.hasNext();) {
             NodeCommand next = (NodeCommand) it.next();
@@ -289,7 +297,7 @@ public abstract class AbstractSpatialIndex implements SpatialIndex {
         }
 
         store.put(node);
-        stats.stats_writes++;
+        stats.addToWritesCounter(1);
 
         for (Iterator it = writeNodeCommands.iterator(); it.hasNext();) {
             NodeCommand next = (NodeCommand) it.next();
@@ -301,7 +309,18 @@ public abstract class AbstractSpatialIndex implements SpatialIndex {
         store.remove(id);
     }
 
+    /** Default comparator for nearest neighbor queries,
+     * using the minimum distance between query and data shape.
+     */
+    public static class NNComparator implements NearestNeighborComparator {
+        public double getMinimumDistance(Shape query, Entry e) {
+            return query.getMinimumDistance(e.getShape());
+        }
+    }
+
     /** Data structure to store statistics about the index.
+     * Counters may be updated concurrently by indexes allowing parallel access,
+     * so accessors are synchronized.
      *
      * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
      *
@@ -311,47 +330,60 @@ public abstract class AbstractSpatialIndex implements SpatialIndex {
         int stats_writes = 0;
         int stats_nodes = 0;
         int stats_data = 0;
+        long stats_data_size = 0;
 
-        public long getNumberOfData() {
+        public synchronized long getNumberOfData() {
             return stats_data;
         }
 
-        public long getNumberOfNodes() {
+        public synchronized long getNumberOfNodes() {
             return stats_nodes;
         }
 
-        public long getReads() {
+        /**
+         * @return estimated size of data in index, in bytes, if index keeps track of it
+         */
+        public synchronized long getDataSize() {
+            return stats_data_size;
+        }
+
+        public synchronized long getReads() {
             return stats_reads;
         }
 
-        public long getWrites() {
+        public synchronized long getWrites() {
             return stats_writes;
         }
 
-        public void addToReadsCounter(int count) {
+        public synchronized void addToReadsCounter(int count) {
             stats_reads += count;
         }
 
-        public void addToWritesCounter(int count) {
+        public synchronized void addToWritesCounter(int count) {
             stats_writes += count;
         }
 
-        public void addToNodesCounter(int count) {
+        public synchronized void addToNodesCounter(int count) {
             stats_nodes += count;
         }
 
-        public void addToDataCounter(int count) {
+        public synchronized void addToDataCounter(int count) {
             stats_data += count;
         }
 
-        public void reset() {
+        public synchronized void addToDataSizeCounter(long size) {
+            stats_data_size += size;
+        }
+
+        public synchronized void reset() {
+            stats_data_size = 0;
             stats_reads = 0;
             stats_writes = 0;
             stats_nodes = 0;
             stats_data = 0;
         }
 
-        public String toString() {
+        public synchronized String toString() {
             StringBuffer sb = new StringBuffer();
             sb.append("Reads = " + stats_reads);
             sb.append(" ; Writes = " + stats_writes);
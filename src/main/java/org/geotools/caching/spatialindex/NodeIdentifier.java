@@ -32,14 +32,47 @@ import java.io.Serializable;
  */
 public abstract class NodeIdentifier implements Serializable {
     transient boolean visited = false;
-    boolean valid = false;
+
+    /**
+     * Validity may be read by query threads while another thread registers or invalidates the node,
+     * so it is kept volatile.
+     */
+    volatile boolean valid = false;
+
+    /**
+     * Bookkeeping attached by the eviction policy tracking this node, if any.
+     * Policies rely on identifiers being canonical, as they are in grids.
+     */
+    transient Object evictionEntry = null;
+
+    /**
+     * Number of queries which have visited this node, kept by adaptive indexes.
+     * This is a hint, so concurrent updates may be lost.
+     */
+    transient int hits = 0;
 
     public abstract Shape getShape();
 
+    /** Tests whether shape intersects the shape of this node.
+     * Subclasses should override this method to test their shape in place, rather than a copy.
+     *
+     * @param s
+     * @return <code>true</code> if s intersects the shape of this node
+     */
+    public boolean intersects(Shape s) {
+        return s.intersects(getShape());
+    }
+
+    /**
+     * @deprecated not used by queries anymore, as flags cannot be shared by concurrent queries
+     */
     public void setVisited(boolean visited) {
         this.visited = visited;
     }
 
+    /**
+     * @deprecated not used by queries anymore, as flags cannot be shared by concurrent queries
+     */
     public boolean isVisited() {
         return visited;
     }
@@ -51,4 +84,20 @@ public abstract class NodeIdentifier implements Serializable {
     public void setValid(boolean valid) {
         this.valid = valid;
     }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public void setHits(int hits) {
+        this.hits = hits;
+    }
+
+    public Object getEvictionEntry() {
+        return evictionEntry;
+    }
+
+    public void setEvictionEntry(Object entry) {
+        this.evictionEntry = entry;
+    }
 }
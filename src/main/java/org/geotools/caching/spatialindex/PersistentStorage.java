@@ -0,0 +1,49 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex;
+
+import java.io.IOException;
+
+
+/** A storage which survives restarts :
+ * once nodes have been checkpointed, storage can be reopened with its content,
+ * along with properties the index needs to restore its own state, such as its root node.
+ * Storages reopened with a stale or missing checkpoint start empty.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
+public interface PersistentStorage extends Storage {
+    /** Makes nodes stored so far durable, and saves properties of the index.
+     * The checkpoint remains valid until storage is modified.
+     *
+     * @param properties state of the index, opaque to storage
+     * @throws IOException
+     */
+    public void checkpoint(byte[] properties) throws IOException;
+
+    /**
+     * @return properties saved by the checkpoint storage has been reopened from,
+     *         or <code>null</code> if storage started empty
+     */
+    public byte[] getProperties();
+
+    /** Releases resources held by storage. Storage cannot be used afterwards.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException;
+}
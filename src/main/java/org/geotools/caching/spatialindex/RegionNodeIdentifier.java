@@ -48,10 +48,41 @@ public final class RegionNodeIdentifier extends NodeIdentifier {
         }
     }
 
+    /** Identify the node representing given region.
+     *
+     * @param region
+     */
+    public RegionNodeIdentifier(Region region) {
+        this.shape = new Region(region);
+    }
+
     public Shape getShape() {
         return new Region(shape);
     }
 
+    /** Reads a low coordinate of the region of node in place, without copying the region.
+     *
+     * @param dim
+     * @return low coordinate in dimension dim
+     */
+    public double getLow(int dim) {
+        return shape.getLow(dim);
+    }
+
+    /** Reads a high coordinate of the region of node in place, without copying the region.
+     *
+     * @param dim
+     * @return high coordinate in dimension dim
+     */
+    public double getHigh(int dim) {
+        return shape.getHigh(dim);
+    }
+
+    @Override
+    public boolean intersects(Shape s) {
+        return s.intersects(shape);
+    }
+
     public int hashCode() {
         return shape.hashCode();
     }
@@ -64,7 +95,7 @@ public final class RegionNodeIdentifier extends NodeIdentifier {
         if (o instanceof RegionNodeIdentifier) {
             RegionNodeIdentifier ni = (RegionNodeIdentifier) o;
 
-            return shape.equals(ni.getShape());
+            return shape.equals(ni.shape);
         } else {
             return false;
         }
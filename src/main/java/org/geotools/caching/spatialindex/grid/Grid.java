@@ -15,11 +15,23 @@
  */
 package org.geotools.caching.spatialindex.grid;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import org.geotools.caching.firstdraft.spatialindex.storagemanager.PropertySet;
 import org.geotools.caching.spatialindex.AbstractSpatialIndex;
+import org.geotools.caching.spatialindex.Data;
+import org.geotools.caching.spatialindex.NearestNeighborComparator;
 import org.geotools.caching.spatialindex.Node;
 import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.Point;
 import org.geotools.caching.spatialindex.Region;
 import org.geotools.caching.spatialindex.RegionNodeIdentifier;
 import org.geotools.caching.spatialindex.Shape;
@@ -37,13 +49,40 @@ import org.geotools.caching.spatialindex.Visitor;
  * For the grid to be efficient, data should evenly distributed in size and in space,
  * and grid size should twice the mean size of data's shape.
  *
+ * Grids can be made adaptive, to cope with data unevenly distributed :
+ * a tile holding too much data, or visited by too many queries, is split
+ * into a sub-grid of 2^dimension smaller tiles, which is itself a GridRootNode
+ * stored in place of the tile, with the same identifier.
+ * Sub-grids never hold data, which is inserted in their tiles,
+ * and are merged back into one tile when their data count drops.
+ *
  * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
  *
  */
 public class Grid extends AbstractSpatialIndex {
     public int root_insertions = 0;
     protected int MAX_INSERTION = 4;
-    protected HashMap<RegionNodeIdentifier, RegionNodeIdentifier> node_ids = new HashMap<RegionNodeIdentifier, RegionNodeIdentifier>();
+    protected ConcurrentHashMap<RegionNodeIdentifier, RegionNodeIdentifier> node_ids = new ConcurrentHashMap<RegionNodeIdentifier, RegionNodeIdentifier>();
+
+    /**
+     * number of tiles of sub-grids, in each dimension
+     */
+    protected static final int SUBGRID_TILES = 2;
+
+    /**
+     * data count above which a tile is split, or 0 if tiles are not split on data count
+     */
+    protected int split_threshold = 0;
+
+    /**
+     * number of queries above which a tile is split, or 0 if tiles are not split on queries
+     */
+    protected int hot_threshold = 0;
+
+    /**
+     * max number of times a top-level tile may be split
+     */
+    protected int max_depth = 0;
 
     /** Constructor. Creates a new Grid covering space given by <code>mbr</code>
      * and with at least <code>capacity</code> nodes.
@@ -66,12 +105,151 @@ public class Grid extends AbstractSpatialIndex {
     protected Grid() {
     }
 
+    /** Makes this grid adaptive.
+     * Tiles holding more than <code>splitThreshold</code> data,
+     * or visited by more than <code>hotThreshold</code> queries,
+     * are split when data is next inserted into them, up to <code>maxDepth</code> times.
+     * Sub-grids are merged back when their data count drops
+     * below a quarter of <code>splitThreshold</code>.
+     *
+     * @param splitThreshold data count, or 0 not to split tiles on data count
+     * @param hotThreshold query count, or 0 not to split tiles on query count
+     * @param maxDepth max levels of sub-grids below top-level tiles
+     */
+    public void setAdaptive(int splitThreshold, int hotThreshold, int maxDepth) {
+        if ((splitThreshold < 0) || (hotThreshold < 0) || (maxDepth < 0)) {
+            throw new IllegalArgumentException("Thresholds and depth must be positive.");
+        }
+
+        this.split_threshold = splitThreshold;
+        this.hot_threshold = hotThreshold;
+        this.max_depth = maxDepth;
+    }
+
+    public boolean isAdaptive() {
+        return (max_depth > 0) && ((split_threshold > 0) || (hot_threshold > 0));
+    }
+
+    /** Returns the identifier held by this grid equal to the given one,
+     * registering the given one if there is none yet.
+     * Validity and eviction entries are kept by identifiers,
+     * so nodes must be referenced by their canonical identifier.
+     *
+     * @param id
+     * @return canonical identifier
+     */
+    protected RegionNodeIdentifier canonicalize(RegionNodeIdentifier id) {
+        RegionNodeIdentifier canonical = node_ids.putIfAbsent(id, id);
+
+        return (canonical == null) ? id : canonical;
+    }
+
+    @Override
+    protected void rangeQuery(int type, Shape query, Visitor v) {
+        rangeQuery(type, query, v, false);
+    }
+
+    /** Same as rangeQuery(type, query, v), but tells whether visitor modifies the nodes it visits.
+     * Rather than testing every tile, only tiles in the range of indexes covered by query are visited,
+     * after data held by the root node.
+     * Data stored in several tiles are visited only once, from their reference tile.
+     * Traversal state is local to this method, so concurrent queries do not interfere.
+     *
+     * @param type
+     * @param query
+     * @param v
+     * @param exclusive <code>true</code> if visitor modifies nodes,
+     *        which matters to subclasses giving concurrent access to nodes
+     */
+    protected void rangeQuery(int type, Shape query, Visitor v, boolean exclusive) {
+        if (!this.root.intersects(query)) {
+            return;
+        }
+
+        GridRootNode rootnode = visitRoot(type, query, v, exclusive);
+        visitTiles(rootnode, new TilePath(query), type, query, v, exclusive);
+    }
+
+    /** Visits the root node, in a range query.
+     *
+     * @return the root node
+     */
+    protected GridRootNode visitRoot(int type, Shape query, Visitor v, boolean exclusive) {
+        GridRootNode rootnode = (GridRootNode) readNode(this.root);
+        visitRangeNode(rootnode, type, query, v);
+
+        return rootnode;
+    }
+
+    /** Visits the tiles of a grid or of a sub-grid covered by query.
+     *
+     * @param node root node of the grid or of the sub-grid
+     * @param path grids and indexes of tiles leading to node, to which tiles of node are added
+     */
+    protected void visitTiles(GridRootNode node, TilePath path, int type, Shape query, Visitor v,
+        boolean exclusive) {
+        int[] cursor = new int[this.dimension];
+        int[] mins = new int[this.dimension];
+        int[] maxs = new int[this.dimension];
+        findMatchingTiles(node, query, cursor, mins, maxs);
+        path.push(node, cursor);
+
+        do {
+            visitTile(node.getChildIdentifier(node.gridIndexToNodeId(cursor)), path, type, query,
+                v, exclusive);
+        } while (increment(cursor, mins, maxs));
+
+        path.pop();
+    }
+
+    /** Visits a tile, and the tiles of its sub-grid covered by query, if it has been split.
+     *
+     * @param tile
+     * @param path grids and indexes of tiles leading to tile, ending with the index of tile
+     */
+    protected void visitTile(NodeIdentifier tile, TilePath path, int type, Shape query, Visitor v,
+        boolean exclusive) {
+        Node node = readNode(tile);
+        v.visitNode(node);
+
+        if (v.isDataVisitor()) {
+            visitData(node, path, v, query, type);
+        }
+
+        if (node instanceof GridRootNode) {
+            visitTiles((GridRootNode) node, path, type, query, v, exclusive);
+        }
+    }
+
     protected void visitData(Node n, Visitor v, Shape query, int type) {
+        visitData(n, null, v, query, type);
+    }
+
+    /** Visits data of a node matching query, for which node is the reference tile.
+     * Reference tile is checked first, as it is cheaper than testing data against query.
+     *
+     * @param n node to visit
+     * @param path grids and indexes of tiles leading to node,
+     *        or <code>null</code> to visit every data of node, as for the root node
+     * @param v
+     * @param query
+     * @param type
+     */
+    protected void visitData(Node n, TilePath path, Visitor v, Shape query, int type) {
         GridNode node = (GridNode) n;
 
+        if (hot_threshold > 0) {
+            NodeIdentifier id = node.getIdentifier();
+            id.setHits(id.getHits() + 1);
+        }
+
         for (int i = 0; i < node.num_data; i++) {
             GridData d = (GridData) node.data[i];
 
+            if ((path != null) && !path.isReference(d.getShape())) {
+                continue;
+            }
+
             if (((type == Grid.IntersectionQuery) && (query.intersects(d.getShape())))
                     || ((type == Grid.ContainmentQuery) && (query.contains(d.getShape())))) {
                 v.visitData(d);
@@ -103,10 +281,10 @@ public class Grid extends AbstractSpatialIndex {
         int[] maxs = new int[this.dimension];
         int[] cursor = new int[this.dimension];
 
-        findMatchingTiles(shape, cursor, mins, maxs);
+        GridRootNode node = (GridRootNode) readNode(nodeid);
+        findMatchingTiles(node, shape, cursor, mins, maxs);
 
         boolean ret = false;
-        GridRootNode node = (GridRootNode) readNode(nodeid);
 
         do {
             NodeIdentifier nextid = node.getChildIdentifier(node.gridIndexToNodeId(cursor));
@@ -126,6 +304,7 @@ public class Grid extends AbstractSpatialIndex {
 
         for (int i = 0; i < node.num_data; i++) {
             if (node.data[i].id == id) {
+                this.stats.addToDataSizeCounter(-node.data[i].getEstimatedSize());
                 node.deleteData(i);
                 this.stats.addToDataCounter(-1);
                 ret = true;
@@ -134,6 +313,10 @@ public class Grid extends AbstractSpatialIndex {
 
         if (node instanceof GridRootNode) {
             ret = ret || deleteDataRecursively(nodeid, shape, id); // if deleted before, we are done and do not visit children nodes.
+
+            if (ret && (split_threshold > 0) && !nodeid.equals(this.root)) {
+                mergeSubGridIfRequired((GridRootNode) node);
+            }
         }
 
         return ret;
@@ -157,10 +340,359 @@ public class Grid extends AbstractSpatialIndex {
     protected void _insertData(NodeIdentifier n, Object data, Shape shape, int id) {
         GridNode node = (GridNode) readNode(n);
 
-        if (node.insertData(new GridData(id, shape, data))) {
+        if ((node instanceof GridRootNode) && !n.equals(this.root)) { // tile has been split
+            insertDataInSubGrid((GridRootNode) node, data, shape, id);
+
+            return;
+        }
+
+        GridData d = new GridData(id, shape, data);
+
+        if (node.insertData(d)) {
             writeNode(node);
             this.stats.addToDataCounter(1);
+            this.stats.addToDataSizeCounter(d.getEstimatedSize());
+
+            if (isSplitRequired(node)) {
+                splitTile(node);
+            }
+        }
+    }
+
+    /** Inserts data in every tile of a sub-grid intersecting shape.
+     * As sub-grids have few tiles, data is never inserted into the sub-grid node itself.
+     */
+    protected void insertDataInSubGrid(GridRootNode node, Object data, Shape shape, int id) {
+        int[] mins = new int[this.dimension];
+        int[] maxs = new int[this.dimension];
+        int[] cursor = new int[this.dimension];
+
+        findMatchingTiles(node, shape, cursor, mins, maxs);
+
+        do {
+            _insertData(node.getChildIdentifier(node.gridIndexToNodeId(cursor)), data, shape, id);
+        } while (increment(cursor, mins, maxs));
+    }
+
+    /** Inserts many data at once.
+     * Data are first partitioned by tile, then each tile is read and written once for all its data,
+     * rather than once for each data, which is much cheaper when storage writes nodes to disk.
+     * Data are dispatched to the same tiles as if they were inserted one by one.
+     *
+     * @param data
+     */
+    public void insertData(List<GridData> data) {
+        GridRootNode rootnode = (GridRootNode) readNode(this.root);
+        List<GridData> atRoot = new ArrayList<GridData>();
+        SortedMap<Integer, List<GridData>> tiles = new TreeMap<Integer, List<GridData>>();
+        int[] mins = new int[this.dimension];
+        int[] maxs = new int[this.dimension];
+        int[] cursor = new int[this.dimension];
+
+        for (Iterator<GridData> it = data.iterator(); it.hasNext();) {
+            GridData d = it.next();
+
+            if (d.getShape().getDimension() != dimension) {
+                throw new IllegalArgumentException(
+                    "insertData: Shape has the wrong number of dimensions.");
+            }
+
+            if (!this.root.getShape().contains(d.getShape())) {
+                insertDataOutOfBounds(d.getData(), d.getShape(), d.getIdentifier());
+
+                continue;
+            }
+
+            findMatchingTiles(rootnode, d.getShape(), cursor, mins, maxs);
+
+            int count = 1;
+
+            for (int i = 0; i < this.dimension; i++) {
+                count *= (maxs[i] - mins[i] + 1);
+            }
+
+            if (count > MAX_INSERTION) {
+                atRoot.add(d);
+                root_insertions++;
+            } else {
+                partition(rootnode, d, cursor, mins, maxs, tiles);
+            }
+        }
+
+        if (!atRoot.isEmpty()) {
+            insertDataBatch(this.root, atRoot);
+        }
+
+        insertDataBatches(rootnode, tiles);
+    }
+
+    /** Adds data to the batches of the tiles of node in the range [mins..maxs].
+     *
+     * @param node root node of the grid or of a sub-grid
+     * @param d
+     * @param cursor initialized with mins
+     * @param mins
+     * @param maxs
+     * @param tiles batches of data, by index of tile in node
+     */
+    protected static void partition(GridRootNode node, GridData d, int[] cursor, int[] mins,
+        int[] maxs, SortedMap<Integer, List<GridData>> tiles) {
+        do {
+            Integer index = new Integer(node.gridIndexToNodeId(cursor));
+            List<GridData> batch = tiles.get(index);
+
+            if (batch == null) {
+                batch = new ArrayList<GridData>();
+                tiles.put(index, batch);
+            }
+
+            batch.add(d);
+        } while (increment(cursor, mins, maxs));
+    }
+
+    /** Inserts batches of data into tiles of node, in the order of tiles in node.
+     *
+     * @param node root node of the grid or of a sub-grid
+     * @param tiles batches of data, by index of tile in node
+     */
+    protected void insertDataBatches(GridRootNode node, SortedMap<Integer, List<GridData>> tiles) {
+        for (Iterator<Map.Entry<Integer, List<GridData>>> it = tiles.entrySet().iterator();
+                it.hasNext();) {
+            Map.Entry<Integer, List<GridData>> next = it.next();
+            insertDataBatch(node.getChildIdentifier(next.getKey().intValue()), next.getValue());
+        }
+    }
+
+    /** Inserts a batch of data into a node, reading and writing node once.
+     * If node is a split tile, data are partitioned again between the tiles of its sub-grid.
+     * If node gets too full, it is split,
+     * and so are the tiles of the new sub-grid which are still too full.
+     *
+     * @param n
+     * @param batch
+     */
+    protected void insertDataBatch(NodeIdentifier n, List<GridData> batch) {
+        GridNode node = (GridNode) readNode(n);
+
+        if ((node instanceof GridRootNode) && !n.equals(this.root)) { // tile has been split
+            insertDataBatchInSubGrid((GridRootNode) node, batch);
+
+            return;
+        }
+
+        int count = 0;
+        long size = 0;
+
+        for (Iterator<GridData> it = batch.iterator(); it.hasNext();) {
+            GridData d = it.next();
+
+            if (node.insertData(d)) {
+                count++;
+                size += d.getEstimatedSize();
+            }
+        }
+
+        if (count > 0) {
+            writeNode(node);
+            this.stats.addToDataCounter(count);
+            this.stats.addToDataSizeCounter(size);
+            splitTileIfRequired(node);
+        }
+    }
+
+    protected void insertDataBatchInSubGrid(GridRootNode node, List<GridData> batch) {
+        SortedMap<Integer, List<GridData>> tiles = new TreeMap<Integer, List<GridData>>();
+        int[] mins = new int[this.dimension];
+        int[] maxs = new int[this.dimension];
+        int[] cursor = new int[this.dimension];
+
+        for (Iterator<GridData> it = batch.iterator(); it.hasNext();) {
+            GridData d = it.next();
+            findMatchingTiles(node, d.getShape(), cursor, mins, maxs);
+            partition(node, d, cursor, mins, maxs, tiles);
+        }
+
+        insertDataBatches(node, tiles);
+    }
+
+    /** Splits tile if required, and then the tiles of its sub-grid which still require it,
+     * as a whole batch of data may have been inserted into tile.
+     *
+     * @param tile
+     */
+    protected void splitTileIfRequired(GridNode tile) {
+        if (!isSplitRequired(tile)) {
+            return;
+        }
+
+        NodeIdentifier id = tile.getIdentifier();
+        splitTile(tile);
+
+        Node subgrid = readNode(id);
+
+        for (int i = 0; i < subgrid.getChildrenCount(); i++) {
+            splitTileIfRequired((GridNode) readNode(subgrid.getChildIdentifier(i)));
+        }
+    }
+
+    /**
+     * @param node a tile, which is not the root node
+     * @return <code>true</code> if node is too full or too hot, and not too deep to be split
+     */
+    protected boolean isSplitRequired(GridNode node) {
+        if (!isAdaptive() || node.getIdentifier().equals(this.root)) {
+            return false;
         }
+
+        boolean full = (split_threshold > 0) && (node.getDataCount() > split_threshold);
+        boolean hot = (hot_threshold > 0) && (node.getIdentifier().getHits() > hot_threshold);
+
+        return (full || hot) && (depth(node) < max_depth);
+    }
+
+    /**
+     * @param node
+     * @return how many times the top-level tile containing node has been split to create node
+     */
+    protected int depth(GridNode node) {
+        GridRootNode rootnode = (GridRootNode) this.rootNode;
+        double size = node.mbr.getHigh(0) - node.mbr.getLow(0);
+
+        return (int) Math.round(Math.log(rootnode.tiles_size / size) / Math.log(SUBGRID_TILES));
+    }
+
+    /** Creates an empty sub-grid covering mbr.
+     * Subclasses should override this method if their grid uses a subclass of GridRootNode.
+     *
+     * @param mbr of the tile to split
+     * @param tiles_number
+     * @param tiles_size
+     * @return
+     */
+    protected GridRootNode createSubGrid(Region mbr, int[] tiles_number, double tiles_size) {
+        return new GridRootNode(this, mbr, tiles_number, tiles_size);
+    }
+
+    /** Replaces a tile by a sub-grid, and distributes the tile's data into the sub-grid's tiles.
+     * Tiles of the sub-grid inherit the validity of the tile.
+     *
+     * @param tile
+     */
+    protected void splitTile(GridNode tile) {
+        NodeIdentifier id = tile.getIdentifier();
+        int[] tiles_number = new int[this.dimension];
+
+        for (int i = 0; i < this.dimension; i++) {
+            tiles_number[i] = SUBGRID_TILES;
+        }
+
+        double tiles_size = (tile.mbr.getHigh(0) - tile.mbr.getLow(0)) / SUBGRID_TILES;
+        GridRootNode subgrid = createSubGrid(tile.mbr, tiles_number, tiles_size);
+        deleteNode(id); // storages may not replace nodes
+        subgrid.split();
+
+        int count = 0;
+        long size = 0;
+        GridNode[] children = new GridNode[subgrid.getChildrenCount()];
+
+        for (int i = 0; i < children.length; i++) {
+            NodeIdentifier childid = subgrid.getChildIdentifier(i);
+            childid.setValid(false);
+            childid.setHits(0);
+            children[i] = (GridNode) readNode(childid);
+        }
+
+        // data goes to the same tiles as if it were inserted into the sub-grid
+        int[] mins = new int[this.dimension];
+        int[] maxs = new int[this.dimension];
+        int[] cursor = new int[this.dimension];
+
+        for (int j = 0; j < tile.num_data; j++) {
+            GridData d = tile.data[j];
+            findMatchingTiles(subgrid, d.getShape(), cursor, mins, maxs);
+
+            do {
+                if (children[subgrid.gridIndexToNodeId(cursor)].insertData(d)) {
+                    count++;
+                    size += d.getEstimatedSize();
+                }
+            } while (increment(cursor, mins, maxs));
+        }
+
+        for (int i = 0; i < children.length; i++) {
+            writeNode(children[i]);
+            subgrid.getChildIdentifier(i).setValid(id.isValid());
+        }
+
+        writeNode(subgrid);
+        id.setHits(0);
+        this.stats.addToNodesCounter(subgrid.getChildrenCount());
+        this.stats.addToDataCounter(count - tile.num_data);
+        this.stats.addToDataSizeCounter(size - tile.data_size);
+    }
+
+    /** Merges a sub-grid back into one tile, if it holds too few data,
+     * and none of its tiles is split.
+     *
+     * @param subgrid
+     */
+    protected void mergeSubGridIfRequired(GridRootNode subgrid) {
+        int count = 0;
+        GridNode[] tiles = new GridNode[subgrid.getChildrenCount()];
+
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = (GridNode) readNode(subgrid.getChildIdentifier(i));
+
+            if (tiles[i] instanceof GridRootNode) {
+                return;
+            }
+
+            count += tiles[i].getDataCount();
+        }
+
+        if ((count * 4) < split_threshold) {
+            mergeSubGrid(subgrid, tiles);
+        }
+    }
+
+    /** Replaces a sub-grid by one tile, holding data of sub-grid's tiles.
+     * The new tile is valid if all tiles of the sub-grid were valid.
+     *
+     * @param subgrid
+     * @param tiles of subgrid, none of which is a sub-grid
+     */
+    protected void mergeSubGrid(GridRootNode subgrid, GridNode[] tiles) {
+        NodeIdentifier id = subgrid.getIdentifier();
+        GridNode tile = subgrid.createNode(subgrid.mbr);
+        id.setValid(false); // until data is copied, as some nodes only accept data when invalid
+        HashSet<Integer> ids = new HashSet<Integer>();
+        boolean valid = true;
+        int count = 0;
+        long size = 0;
+
+        for (int i = 0; i < tiles.length; i++) {
+            valid = valid && tiles[i].getIdentifier().isValid();
+
+            for (int j = 0; j < tiles[i].num_data; j++) {
+                GridData d = tiles[i].data[j];
+                count++;
+                size += d.getEstimatedSize();
+
+                if (ids.add(new Integer(d.id))) {
+                    tile.insertData(d);
+                }
+            }
+
+            deleteNode(tiles[i].getIdentifier());
+        }
+
+        deleteNode(id);
+        writeNode(tile);
+        id.setValid(valid);
+        id.setHits(0);
+        this.stats.addToNodesCounter(-tiles.length);
+        this.stats.addToDataCounter(tile.num_data - count);
+        this.stats.addToDataSizeCounter(tile.data_size - size);
     }
 
     protected void insertData(NodeIdentifier n, Object data, Shape shape, int id) {
@@ -225,12 +757,83 @@ public class Grid extends AbstractSpatialIndex {
      * @param maxs
      */
     protected void findMatchingTiles(Shape shape, int[] cursor, final int[] mins, final int[] maxs) {
-        GridRootNode node = (GridRootNode) readNode(this.root);
+        findMatchingTiles((GridRootNode) readNode(this.root), shape, cursor, mins, maxs);
+    }
+
+    /** Computes min and max indexes of tiles of node,
+     * in order to cover all tiles intersecting shape,
+     * and initializes cursor with mins values.
+     * Indexes are bounded to the tiles of node, so shape may extend beyond node.
+     *
+     * @param node root node of the grid or of a sub-grid
+     * @param shape
+     * @param cursor
+     * @param mins
+     * @param maxs
+     */
+    protected void findMatchingTiles(GridRootNode node, Shape shape, int[] cursor,
+        final int[] mins, final int[] maxs) {
+        Region mbr = shape.getMBR();
 
         for (int i = 0; i < this.dimension; i++) {
-            mins[i] = (int) ((shape.getMBR().getLow(i) - node.mbr.getLow(i)) / node.tiles_size);
+            mins[i] = tileIndex(node, mbr.getLow(i), i);
             cursor[i] = mins[i];
-            maxs[i] = (int) ((shape.getMBR().getHigh(i) - node.mbr.getLow(i)) / node.tiles_size);
+            maxs[i] = tileIndex(node, mbr.getHigh(i), i);
+        }
+    }
+
+    /** Computes the index, in one dimension, of the tile of node containing a coordinate.
+     *
+     * @param node root node of the grid or of a sub-grid
+     * @param coord
+     * @param dim
+     * @return index bounded to the tiles of node
+     */
+    protected static int tileIndex(GridRootNode node, double coord, int dim) {
+        int index = (int) ((coord - node.mbr.getLow(dim)) / node.tiles_size);
+
+        return Math.max(0, Math.min(node.tiles_number[dim] - 1, index));
+    }
+
+    /** Tells if a tile is the reference tile of data for query.
+     * Data stored in several tiles matching query is stored in only one reference tile,
+     * which is the first tile, in every dimension, covered by both data and query :
+     * visiting data only in its reference tile yields every data once, without remembering data already seen.
+     *
+     * This is called for every data of every tile visited, so it does not allocate.
+     *
+     * @param node root node of the grid or of a sub-grid
+     * @param cursor index of the tile in node
+     * @param shape of data stored in tile
+     * @param qlow low coordinates of the MBR of query
+     * @return <code>true</code> if tile is the reference tile of data
+     */
+    protected static boolean isReferenceTile(GridRootNode node, int[] cursor, Shape shape,
+        double[] qlow) {
+        for (int i = 0; i < cursor.length; i++) {
+            int ref = Math.max(tileIndex(node, getLow(shape, i), i), tileIndex(node, qlow[i], i));
+
+            if (cursor[i] != ref) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /** Low coordinate of the MBR of shape, read in place for regions and points.
+     *
+     * @param shape
+     * @param dim
+     * @return low coordinate of shape in dimension dim
+     */
+    protected static double getLow(Shape shape, int dim) {
+        if (shape instanceof Region) {
+            return ((Region) shape).getLow(dim);
+        } else if (shape instanceof Point) {
+            return ((Point) shape).getCoord(dim);
+        } else {
+            return shape.getMBR().getLow(dim);
         }
     }
 
@@ -262,6 +865,313 @@ public class Grid extends AbstractSpatialIndex {
         return cont;
     }
 
+    public void nearestNeighborQuery(int k, Shape query, Visitor v, NearestNeighborComparator nnc) {
+        nearestNeighbors(k, query, v, nnc);
+    }
+
+    /** Finds the k data nearest to query, and visits them by increasing distance.
+     * Tiles are searched ring by ring, starting from the tiles covering query,
+     * until no tile left can hold data nearer than the k-th data found yet,
+     * keeping the k nearest data found in a bounded priority queue.
+     * Distances of data are given by nnc, whereas distances of tiles are minimum distances to their MBR,
+     * so nnc must never give a data a distance smaller than the minimum distance to its shape.
+     *
+     * @param k
+     * @param query
+     * @param v
+     * @param nnc
+     * @return leaf tiles searched which may hold data as near to query as the k-th data,
+     *         or any leaf tile searched if less than k data were found
+     */
+    protected List<NodeIdentifier> nearestNeighbors(int k, Shape query, Visitor v,
+        NearestNeighborComparator nnc) {
+        if (query.getDimension() != dimension) {
+            throw new IllegalArgumentException(
+                "nearestNeighborQuery: Shape has the wrong number of dimensions.");
+        }
+
+        if (k <= 0) {
+            throw new IllegalArgumentException("nearestNeighborQuery: k must be positive.");
+        }
+
+        Neighbors neighbors = new Neighbors(k, query, nnc);
+        GridRootNode rootnode = (GridRootNode) readNode(this.root);
+        visitNearestRoot(rootnode, neighbors, v);
+
+        Region mbr = query.getMBR();
+        int[] lows = new int[this.dimension];
+        int[] highs = new int[this.dimension];
+        int[] cursor = new int[this.dimension];
+        int[] prevLows = null;
+        int[] prevHighs = null;
+        findMatchingTiles(rootnode, query, cursor, lows, highs);
+
+        while (true) {
+            // visit tiles of current ring, ie tiles in [lows..highs] not in previous ring
+            System.arraycopy(lows, 0, cursor, 0, this.dimension);
+
+            do {
+                if ((prevLows == null) || !within(cursor, prevLows, prevHighs)) {
+                    NodeIdentifier tile = rootnode.getChildIdentifier(rootnode.gridIndexToNodeId(
+                                cursor));
+
+                    if (neighbors.mayHoldNeighbors(tile)) {
+                        visitNearestTile(tile, neighbors, v);
+                    }
+                }
+            } while (increment(cursor, lows, highs));
+
+            // distance beyond which tiles out of current ring lie
+            double bound = Double.POSITIVE_INFINITY;
+            boolean whole = true;
+
+            for (int i = 0; i < this.dimension; i++) {
+                if (lows[i] > 0) {
+                    bound = Math.min(bound,
+                            mbr.getLow(i) - rootnode.mbr.getLow(i) - (lows[i] * rootnode.tiles_size));
+                    whole = false;
+                }
+
+                if (highs[i] < (rootnode.tiles_number[i] - 1)) {
+                    bound = Math.min(bound,
+                            (rootnode.mbr.getLow(i) + ((highs[i] + 1) * rootnode.tiles_size))
+                            - mbr.getHigh(i));
+                    whole = false;
+                }
+            }
+
+            if (whole || (neighbors.isFull() && (neighbors.radius() <= bound))) {
+                break;
+            }
+
+            prevLows = (int[]) lows.clone();
+            prevHighs = (int[]) highs.clone();
+
+            for (int i = 0; i < this.dimension; i++) {
+                lows[i] = Math.max(0, lows[i] - 1);
+                highs[i] = Math.min(rootnode.tiles_number[i] - 1, highs[i] + 1);
+            }
+        }
+
+        return neighbors.visit(v);
+    }
+
+    /** Searches data stored at root node for nearest neighbors.
+     * Subclasses may override this method to guard access to root node.
+     *
+     * @param rootnode
+     * @param neighbors
+     * @param v
+     */
+    protected void visitNearestRoot(GridRootNode rootnode, Neighbors neighbors, Visitor v) {
+        v.visitNode(rootnode);
+        neighbors.offer(rootnode);
+    }
+
+    /** Searches a tile for nearest neighbors, and the tiles of its sub-grid if it has been split.
+     * Subclasses may override this method to guard access to tiles.
+     *
+     * @param tile
+     * @param neighbors
+     * @param v
+     */
+    protected void visitNearestTile(NodeIdentifier tile, Neighbors neighbors, Visitor v) {
+        Node node = readNode(tile);
+        v.visitNode(node);
+        neighbors.offer((GridNode) node);
+
+        if (node instanceof GridRootNode) {
+            for (int i = 0; i < node.getChildrenCount(); i++) {
+                NodeIdentifier child = node.getChildIdentifier(i);
+
+                if (neighbors.mayHoldNeighbors(child)) {
+                    visitNearestTile(child, neighbors, v);
+                }
+            }
+        } else {
+            neighbors.searched(tile);
+        }
+    }
+
+    static boolean within(int[] cursor, int[] mins, int[] maxs) {
+        for (int i = 0; i < cursor.length; i++) {
+            if ((cursor[i] < mins[i]) || (cursor[i] > maxs[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /** State of a nearest neighbor query :
+     * k nearest data found yet, in a priority queue with the farthest data at head,
+     * and leaf tiles searched with their distance to query.
+     *
+     * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+     *
+     */
+    protected static class Neighbors {
+        final int k;
+        final Shape query;
+        final NearestNeighborComparator nnc;
+        final PriorityQueue<Neighbor> queue;
+        final HashSet<Integer> ids = new HashSet<Integer>();
+        final List<NodeIdentifier> tiles = new ArrayList<NodeIdentifier>();
+        final List<Double> distances = new ArrayList<Double>();
+
+        Neighbors(int k, Shape query, NearestNeighborComparator nnc) {
+            this.k = k;
+            this.query = query;
+            this.nnc = nnc;
+            this.queue = new PriorityQueue<Neighbor>(k,
+                    new Comparator<Neighbor>() {
+                        public int compare(Neighbor n1, Neighbor n2) {
+                            return Double.compare(n2.distance, n1.distance);
+                        }
+                    });
+        }
+
+        boolean isFull() {
+            return queue.size() == k;
+        }
+
+        /**
+         * @return distance of the k-th data found yet, or infinity if less than k data were found
+         */
+        double radius() {
+            return isFull() ? queue.peek().distance : Double.POSITIVE_INFINITY;
+        }
+
+        boolean mayHoldNeighbors(NodeIdentifier tile) {
+            return query.getMinimumDistance(tile.getShape()) <= radius();
+        }
+
+        void offer(GridNode node) {
+            for (int i = 0; i < node.num_data; i++) {
+                GridData d = node.data[i];
+
+                if (!ids.add(new Integer(d.id))) { // data stored in several tiles
+                    continue;
+                }
+
+                double distance = nnc.getMinimumDistance(query, d);
+
+                if (!isFull()) {
+                    queue.add(new Neighbor(d, distance));
+                } else if (distance < radius()) {
+                    queue.poll();
+                    queue.add(new Neighbor(d, distance));
+                }
+            }
+        }
+
+        void searched(NodeIdentifier tile) {
+            tiles.add(tile);
+            distances.add(new Double(query.getMinimumDistance(tile.getShape())));
+        }
+
+        /** Visits data found by increasing distance.
+         *
+         * @return leaf tiles which may hold data as near as the k-th data
+         */
+        List<NodeIdentifier> visit(Visitor v) {
+            double radius = radius();
+            Neighbor[] found = new Neighbor[queue.size()];
+
+            for (int i = found.length - 1; i >= 0; i--) {
+                found[i] = queue.poll();
+            }
+
+            for (int i = 0; i < found.length; i++) {
+                v.visitData(found[i].data);
+            }
+
+            List<NodeIdentifier> covering = new ArrayList<NodeIdentifier>();
+
+            for (int i = 0; i < tiles.size(); i++) {
+                if (distances.get(i).doubleValue() <= radius) {
+                    covering.add(tiles.get(i));
+                }
+            }
+
+            return covering;
+        }
+    }
+
+    /** Grids and sub-grids traversed to reach a tile, with the index of the tile reached in each,
+     * so as to tell if a tile is the reference tile of data stored in several tiles.
+     * Indexes are shared with the cursors moving over grids, and so follow them.
+     * A path serves one query, whose MBR is computed once.
+     *
+     * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+     *
+     */
+    protected static class TilePath {
+        GridRootNode[] grids = new GridRootNode[4];
+        int[][] cursors = new int[4][];
+        int depth = 0;
+        final double[] qlow;
+
+        /**
+         * @param query served by this path
+         */
+        public TilePath(Shape query) {
+            Region qmbr = query.getMBR();
+            qlow = new double[qmbr.getDimension()];
+
+            for (int i = 0; i < qlow.length; i++) {
+                qlow[i] = qmbr.getLow(i);
+            }
+        }
+
+        public void push(GridRootNode grid, int[] cursor) {
+            if (depth == grids.length) {
+                GridRootNode[] newgrids = new GridRootNode[2 * depth];
+                System.arraycopy(grids, 0, newgrids, 0, depth);
+                grids = newgrids;
+
+                int[][] newcursors = new int[2 * depth][];
+                System.arraycopy(cursors, 0, newcursors, 0, depth);
+                cursors = newcursors;
+            }
+
+            grids[depth] = grid;
+            cursors[depth] = cursor;
+            depth++;
+        }
+
+        public void pop() {
+            depth--;
+            grids[depth] = null;
+            cursors[depth] = null;
+        }
+
+        /**
+         * @param shape of data stored in the last tile of path
+         * @return <code>true</code> if the last tile of path is the reference tile of data
+         *         for the query of path, in every grid of path
+         */
+        public boolean isReference(Shape shape) {
+            for (int i = 0; i < depth; i++) {
+                if (!isReferenceTile(grids[i], cursors[i], shape, qlow)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    static class Neighbor {
+        final Data data;
+        final double distance;
+
+        Neighbor(Data data, double distance) {
+            this.data = data;
+            this.distance = distance;
+        }
+    }
+
     protected void insertDataOutOfBounds(Object data, Shape shape, int id) {
         throw new IllegalArgumentException("Grids cannot expand : Shape out of grid : " + shape);
     }
@@ -272,7 +1182,40 @@ public class Grid extends AbstractSpatialIndex {
     }
 
     protected Node readNode(NodeIdentifier id) {
-        return super.readNode(id);
+        Node node = super.readNode(id);
+
+        if (node == null) {
+            node = recoverNode(id);
+        }
+
+        return node;
+    }
+
+    /** Replaces a node lost by storage, for example because it was found corrupted on disk,
+     * by an empty tile, marked invalid. Data of the lost node are lost too.
+     * If the lost node was a sub-grid, its tiles are left orphan in storage.
+     *
+     * @param id of lost node
+     * @return empty tile
+     */
+    protected Node recoverNode(NodeIdentifier id) {
+        Node node = createLostNode(id);
+        writeNode(node);
+
+        return node;
+    }
+
+    /** Creates the empty tile replacing a lost node, without writing it.
+     *
+     * @param id of lost node
+     * @return empty tile, marked invalid
+     */
+    protected GridNode createLostNode(NodeIdentifier id) {
+        GridRootNode rootnode = (GridRootNode) super.readNode(this.root);
+        GridNode node = rootnode.createNode((Region) id.getShape());
+        node.getIdentifier().setValid(false);
+
+        return node;
     }
 
     protected void writeNode(Node node) {
@@ -22,6 +22,7 @@ import java.io.ObjectOutput;
 import org.opengis.feature.simple.SimpleFeature;
 import org.geotools.caching.spatialindex.Data;
 import org.geotools.caching.spatialindex.Shape;
+import org.geotools.caching.util.FeatureSizeEstimator;
 import org.geotools.caching.util.SimpleFeatureMarshaller;
 import org.geotools.feature.IllegalAttributeException;
 
@@ -36,11 +37,36 @@ public class GridData implements Data, Externalizable {
      *
      */
     private static final long serialVersionUID = 2435341100521921266L;
-    static SimpleFeatureMarshaller marshaller = new SimpleFeatureMarshaller();
+
+    /**
+     * estimated size of a GridData, with its shape, excluding data
+     */
+    public static final int OVERHEAD = 112;
+
+    /**
+     * feature types known to marshallers of all threads
+     */
+    static final SimpleFeatureMarshaller registry = new SimpleFeatureMarshaller(
+            SimpleFeatureMarshaller.BINARY);
+
+    /**
+     * marshallers are not thread-safe, so each thread uses its own
+     */
+    static final ThreadLocal<SimpleFeatureMarshaller> marshaller =
+        new ThreadLocal<SimpleFeatureMarshaller>() {
+            protected SimpleFeatureMarshaller initialValue() {
+                return new SimpleFeatureMarshaller(registry);
+            }
+        };
     int id;
     Shape shape;
     Object data;
 
+    /**
+     * estimated size, computed on first use
+     */
+    long size = -1;
+
     public GridData() {
     }
 
@@ -62,13 +88,24 @@ public class GridData implements Data, Externalizable {
         return shape;
     }
 
+    /**
+     * @return estimated heap size of this data, in bytes
+     */
+    public long getEstimatedSize() {
+        if (size < 0) {
+            size = OVERHEAD + FeatureSizeEstimator.estimate(data);
+        }
+
+        return size;
+    }
+
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         this.id = in.readInt();
         this.shape = (Shape) in.readObject();
 
         if (in.readBoolean()) {
             try {
-                this.data = marshaller.unmarshall(in);
+                this.data = marshaller.get().unmarshall(in);
             } catch (IllegalAttributeException e) {
                 throw (IOException) new IOException().initCause(e);
             }
@@ -83,7 +120,7 @@ public class GridData implements Data, Externalizable {
 
         if (data instanceof SimpleFeature) {
             out.writeBoolean(true);
-            marshaller.marshall((SimpleFeature) data, out);
+            marshaller.get().marshall((SimpleFeature) data, out);
         } else {
             out.writeBoolean(false);
             out.writeObject(data);
@@ -44,6 +44,11 @@ public class GridNode implements Node, Serializable {
 
     //protected int[] data_ids;
     protected GridData[] data;
+
+    /**
+     * estimated size of data held by this node, in bytes
+     */
+    protected long data_size = 0;
     transient protected RegionNodeIdentifier id = null;
 
     //transient boolean visited = false;
@@ -61,6 +66,7 @@ public class GridNode implements Node, Serializable {
         //this.parent = parent;
         //this.node_data = new HashMap();
         this.num_data = 0;
+        this.data_size = 0;
         this.data = new GridData[10];
         //this.data_ids = new int[10];
         this.grid = grid;
@@ -101,13 +107,7 @@ public class GridNode implements Node, Serializable {
 
     public NodeIdentifier getIdentifier() {
         if (id == null) {
-            id = new RegionNodeIdentifier(this);
-
-            if (grid.node_ids.containsKey(id)) {
-                id = grid.node_ids.get(id);
-            } else {
-                grid.node_ids.put(id, id);
-            }
+            id = grid.canonicalize(new RegionNodeIdentifier(this));
         }
 
         return id;
@@ -135,6 +135,7 @@ public class GridNode implements Node, Serializable {
         //data_ids[num_data] = data.id;
         this.data[num_data] = data;
         num_data++;
+        data_size += data.getEstimatedSize();
 
         return true;
     }
@@ -150,6 +151,8 @@ public class GridNode implements Node, Serializable {
             throw new IndexOutOfBoundsException();
         }
 
+        data_size -= data[index].getEstimatedSize();
+
         if (index < (num_data - 1)) {
             //data_ids[index] = data_ids[num_data - 1];
             data[index] = data[num_data - 1];
@@ -164,6 +167,7 @@ public class GridNode implements Node, Serializable {
      */
     public void clear() {
         this.num_data = 0;
+        this.data_size = 0;
         this.data = new GridData[10];
 
         //this.data_ids = new int[10];
@@ -173,6 +177,13 @@ public class GridNode implements Node, Serializable {
         return this.num_data;
     }
 
+    /**
+     * @return estimated size of data held by this node, in bytes
+     */
+    public long getDataSize() {
+        return this.data_size;
+    }
+
     public String toString() {
         StringBuffer sb = new StringBuffer();
         sb.append("GridNode: MBR:" + mbr);
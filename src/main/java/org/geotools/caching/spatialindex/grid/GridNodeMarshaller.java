@@ -18,80 +18,274 @@ package org.geotools.caching.spatialindex.grid;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import org.opengis.feature.simple.SimpleFeature;
 import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.Point;
+import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.RegionNodeIdentifier;
+import org.geotools.caching.spatialindex.Shape;
 import org.geotools.caching.spatialindex.store.AbstractNodeMarshaller;
 import org.geotools.caching.util.SimpleFeatureMarshaller;
 import org.geotools.feature.IllegalAttributeException;
 
 
+/** Compact binary codec for grid nodes, to be plugged into storages in place of Java serialization.
+ * Shapes are written as raw doubles, ids as ints,
+ * and features are written by a SimpleFeatureMarshaller ;
+ * only data which are not features go through Java serialization.
+ *
+ * Storage format : Node := byte   : ROOT or NODE,
+ *                          Region : MBR of node,
+ *                          [RootHeader] if root,
+ *                          int    : number of data,
+ *                          long   : estimated size of data,
+ *                          [Data]
+ * Region := int : dimension, double[dimension] : lows, double[dimension] : highs
+ * RootHeader := int : capacity, double : tiles size, int[dimension] : tiles number,
+ *               int : number of children, [Region, boolean : validity] for each child
+ * Data := int : id, byte : REGION or POINT, shape coordinates,
+ *         byte : FEATURE or OBJECT, feature or serialized object
+ *
+ * Nodes are unmarshalled without a back link to their grid :
+ * storages must call Node.init() before returning them.
+ * Several threads may use the same GridNodeMarshaller at once.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
 public class GridNodeMarshaller extends AbstractNodeMarshaller {
-    SimpleFeatureMarshaller marshaller = new SimpleFeatureMarshaller();
+    protected static final byte NODE = 0;
+    protected static final byte ROOT = 1;
+    protected static final byte REGION = 0;
+    protected static final byte POINT = 1;
+    protected static final byte OBJECT = 0;
+    protected static final byte FEATURE = 1;
+
+    /**
+     * feature types known to this marshaller
+     */
+    protected SimpleFeatureMarshaller registry = new SimpleFeatureMarshaller(
+            SimpleFeatureMarshaller.BINARY);
+
+    /**
+     * feature marshallers are not thread-safe, so each thread uses its own,
+     * so that storages may encode and decode nodes concurrently
+     */
+    protected ThreadLocal<SimpleFeatureMarshaller> marshaller =
+        new ThreadLocal<SimpleFeatureMarshaller>() {
+            protected SimpleFeatureMarshaller initialValue() {
+                return new SimpleFeatureMarshaller(registry);
+            }
+        };
+
+    /**
+     * @return the marshaller holding feature types, where feature types may be registered
+     */
+    public SimpleFeatureMarshaller getFeatureMarshaller() {
+        return registry;
+    }
 
     @Override
     protected Node read(ObjectInputStream ois)
         throws IOException, ClassNotFoundException, IllegalAttributeException {
-        boolean isRoot = ois.readBoolean();
+        byte kind = ois.readByte();
+        Region mbr = readRegion(ois);
+        GridNode node;
 
-        if (isRoot) {
-            GridRootNode node = new GridRootNode();
+        if (kind == ROOT) {
+            GridRootNode root = createRootNode(mbr);
+            readRootHeader(ois, root);
+            node = root;
+        } else if (kind == NODE) {
+            node = createNode(mbr);
         } else {
+            throw new IOException("Unknown kind of node : " + kind);
+        }
+
+        int num_data = ois.readInt();
+        long data_size = ois.readLong();
+        GridData[] data = new GridData[Math.max(num_data, 10)];
+
+        for (int i = 0; i < num_data; i++) {
+            data[i] = readData(ois);
+        }
+
+        node.data = data;
+        node.num_data = num_data;
+        node.data_size = data_size;
+
+        return node;
+    }
+
+    /** Creates an empty node, when unmarshalling a node which is not the root.
+     * Subclasses should override this method if their grid uses a subclass of GridNode.
+     *
+     * @param mbr
+     * @return
+     */
+    protected GridNode createNode(Region mbr) {
+        return new GridNode(null, mbr);
+    }
+
+    /** Creates a not yet initialized root node, when unmarshalling the root node.
+     * Subclasses should override this method if their grid uses a subclass of GridRootNode.
+     *
+     * @param mbr
+     * @return
+     */
+    protected GridRootNode createRootNode(Region mbr) {
+        return new GridRootNode(null, mbr);
+    }
+
+    void readRootHeader(ObjectInputStream ois, GridRootNode root)
+        throws IOException {
+        root.capacity = ois.readInt();
+        root.tiles_size = ois.readDouble();
+        root.tiles_number = new int[ois.readInt()];
+
+        for (int i = 0; i < root.tiles_number.length; i++) {
+            root.tiles_number[i] = ois.readInt();
         }
 
-        return null;
+        int children = ois.readInt();
+        root.children = new ArrayList<NodeIdentifier>(children);
+
+        for (int i = 0; i < children; i++) {
+            RegionNodeIdentifier id = new RegionNodeIdentifier(readRegion(ois));
+            id.setValid(ois.readBoolean());
+            root.children.add(id);
+        }
+    }
+
+    GridData readData(ObjectInputStream ois)
+        throws IOException, ClassNotFoundException, IllegalAttributeException {
+        int id = ois.readInt();
+        byte shapeKind = ois.readByte();
+        Shape shape;
+
+        if (shapeKind == REGION) {
+            shape = readRegion(ois);
+        } else if (shapeKind == POINT) {
+            double[] coords = new double[ois.readInt()];
+
+            for (int i = 0; i < coords.length; i++) {
+                coords[i] = ois.readDouble();
+            }
+
+            shape = new Point(coords);
+        } else {
+            throw new IOException("Unknown kind of shape : " + shapeKind);
+        }
+
+        Object data;
+
+        if (ois.readByte() == FEATURE) {
+            data = marshaller.get().unmarshall(ois);
+        } else {
+            data = ois.readObject();
+        }
+
+        return new GridData(id, shape, data);
+    }
+
+    protected Region readRegion(ObjectInputStream ois) throws IOException {
+        int dims = ois.readInt();
+        double[] low = new double[dims];
+        double[] high = new double[dims];
+
+        for (int i = 0; i < dims; i++) {
+            low[i] = ois.readDouble();
+        }
+
+        for (int i = 0; i < dims; i++) {
+            high[i] = ois.readDouble();
+        }
+
+        return new Region(low, high);
     }
 
     @Override
     protected void write(ObjectOutputStream oos, Node node)
         throws IOException {
+        GridNode gridnode = (GridNode) node;
+
         if (node instanceof GridRootNode) {
-            write(oos, (GridRootNode) node);
+            oos.writeByte(ROOT);
+            writeRegion(oos, gridnode.mbr);
+            writeRootHeader(oos, (GridRootNode) node);
         } else {
-            write(oos, (GridNode) node);
+            oos.writeByte(NODE);
+            writeRegion(oos, gridnode.mbr);
+        }
+
+        oos.writeInt(gridnode.num_data);
+        oos.writeLong(gridnode.data_size);
+
+        for (int i = 0; i < gridnode.num_data; i++) {
+            writeData(oos, gridnode.data[i]);
         }
     }
 
-    void write(ObjectOutputStream oos, GridNode node) throws IOException {
-        oos.writeBoolean(false);
-        oos.writeObject(node.getShape());
-        oos.writeInt(node.num_data);
+    void writeRootHeader(ObjectOutputStream oos, GridRootNode root)
+        throws IOException {
+        oos.writeInt(root.capacity);
+        oos.writeDouble(root.tiles_size);
+        oos.writeInt(root.tiles_number.length);
 
-        for (int i = 0; i < node.num_data; i++) {
-            GridData gd = node.data[i];
-            oos.writeInt(gd.id);
-            oos.writeObject(gd.shape);
+        for (int i = 0; i < root.tiles_number.length; i++) {
+            oos.writeInt(root.tiles_number[i]);
+        }
 
-            Object data = gd.data;
+        oos.writeInt(root.children.size());
 
-            if (data instanceof SimpleFeature) {
-                marshaller.marshall((SimpleFeature) data, oos);
-            } else {
-                oos.writeObject(data);
-            }
+        for (int i = 0; i < root.children.size(); i++) {
+            NodeIdentifier child = root.children.get(i);
+            writeRegion(oos, (Region) child.getShape());
+            oos.writeBoolean(child.isValid());
         }
     }
 
-    void write(ObjectOutputStream oos, GridRootNode node)
+    void writeData(ObjectOutputStream oos, GridData gd)
         throws IOException {
-        oos.writeBoolean(true);
-        oos.writeObject(node.getShape());
-        oos.writeInt(node.num_data);
-        oos.writeInt(node.capacity);
-        oos.writeDouble(node.tiles_size);
-        oos.writeObject(node.tiles_number);
-
-        for (int i = 0; i < node.num_data; i++) {
-            GridData gd = node.data[i];
-            oos.writeInt(gd.id);
-            oos.writeObject(gd.shape);
-
-            Object data = gd.data;
-
-            if (data instanceof SimpleFeature) {
-                marshaller.marshall((SimpleFeature) data, oos);
-            } else {
-                oos.writeObject(data);
+        oos.writeInt(gd.id);
+
+        if (gd.shape instanceof Region) {
+            oos.writeByte(REGION);
+            writeRegion(oos, (Region) gd.shape);
+        } else if (gd.shape instanceof Point) {
+            double[] coords = ((Point) gd.shape).m_pCoords;
+            oos.writeByte(POINT);
+            oos.writeInt(coords.length);
+
+            for (int i = 0; i < coords.length; i++) {
+                oos.writeDouble(coords[i]);
             }
+        } else {
+            throw new IOException("Cannot marshall shape : " + gd.shape);
+        }
+
+        if (gd.data instanceof SimpleFeature) {
+            oos.writeByte(FEATURE);
+            marshaller.get().marshall((SimpleFeature) gd.data, oos);
+        } else {
+            oos.writeByte(OBJECT);
+            oos.writeObject(gd.data);
+        }
+    }
+
+    protected void writeRegion(ObjectOutputStream oos, Region r)
+        throws IOException {
+        int dims = r.getDimension();
+        oos.writeInt(dims);
+
+        for (int i = 0; i < dims; i++) {
+            oos.writeDouble(r.getLow(i));
+        }
+
+        for (int i = 0; i < dims; i++) {
+            oos.writeDouble(r.getHigh(i));
         }
     }
 }
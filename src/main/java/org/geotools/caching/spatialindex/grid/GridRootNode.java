@@ -19,7 +19,9 @@ import java.util.ArrayList;
 import org.geotools.caching.spatialindex.AbstractSpatialIndex;
 import org.geotools.caching.spatialindex.NodeIdentifier;
 import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.RegionNodeIdentifier;
 import org.geotools.caching.spatialindex.Shape;
+import org.geotools.caching.spatialindex.SpatialIndex;
 
 
 /** The root node of a grid, which has n GridNodes as children.
@@ -64,6 +66,40 @@ public class GridRootNode extends GridNode {
         init();
     }
 
+    /** Create a sub-grid covering a tile of a parent grid, with given tiles number and size.
+     * Sub-grids are created when splitting tiles of adaptive grids.
+     *
+     * @param grid
+     * @param mbr of the tile to split
+     * @param tiles_number in each dimension
+     * @param tiles_size
+     */
+    protected GridRootNode(Grid grid, Region mbr, int[] tiles_number, double tiles_size) {
+        super(grid, mbr);
+        this.grid = grid;
+        this.tiles_number = tiles_number;
+        this.tiles_size = tiles_size;
+        this.capacity = 1;
+
+        for (int i = 0; i < tiles_number.length; i++) {
+            this.capacity *= tiles_number[i];
+        }
+
+        this.children = new ArrayList<NodeIdentifier>(capacity);
+    }
+
+    /** Post-deserialization initialization.
+     * Children identifiers are replaced by the canonical identifiers held by grid,
+     * which carry the current validity of children.
+     */
+    public void init(SpatialIndex grid) {
+        super.init(grid);
+
+        for (int i = 0; i < children.size(); i++) {
+            children.set(i, this.grid.canonicalize((RegionNodeIdentifier) children.get(i)));
+        }
+    }
+
     void init() {
         int dims = mbr.getDimension();
         tiles_number = new int[dims];
@@ -196,6 +232,25 @@ public class GridRootNode extends GridNode {
      * @param index
      * @return
      */
+    /** Computes the index of the tile of this grid containing the center of a node,
+     * without allocating, as gridIndexToNodeId() would for the cursor of that tile.
+     *
+     * @param id of a node within this grid
+     * @return index of tile
+     */
+    public int gridIndexOf(RegionNodeIdentifier id) {
+        int result = 0;
+        int offset = 1;
+
+        for (int i = 0; i < tiles_number.length; i++) {
+            double center = (id.getLow(i) + id.getHigh(i)) / 2;
+            result += (offset * Grid.tileIndex(this, center, i));
+            offset *= tiles_number[i];
+        }
+
+        return result;
+    }
+
     public int gridIndexToNodeId(int[] index) {
         if (index.length != tiles_number.length) {
             throw new IllegalArgumentException("Argument has " + index.length
@@ -0,0 +1,320 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.SpatialIndex;
+import org.geotools.caching.spatialindex.Storage;
+import org.geotools.feature.IllegalAttributeException;
+
+
+/** Base class of storages writing encoded nodes to byte buffers split into pages of fixed size.
+ * Buffers, or segments, hold a fixed number of pages ; subclasses tell how segments are allocated,
+ * as storage grows.
+ * Each node is written to an extent, ie a run of contiguous pages, allocated first fit
+ * from a bitmap of used pages, as in DiskStorage ; nodes put again are rewritten in place
+ * if their extent is large enough. Pages freed by removed nodes are reused
+ * before new segments are allocated.
+ * Nodes are decoded on each get, with the given NodeMarshaller,
+ * or with Java serialization if none is given.
+ * Storage is locked only to allocate pages and copy bytes from and to segments :
+ * nodes are encoded and decoded by calling threads, so the marshaller must be thread-safe.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
+public abstract class AbstractPagedStorage implements Storage {
+    protected final int page_size;
+    protected final int segment_pages;
+    protected ArrayList<ByteBuffer> segments;
+    private BitSet usedPages;
+    private HashMap<NodeIdentifier, Entry> pageIndex;
+    private NodeMarshaller marshaller;
+    protected SpatialIndex parent;
+
+    /**
+     * @param page_size in bytes
+     * @param segment_pages number of pages in each segment
+     * @param marshaller codec used to encode nodes, or <code>null</code> to use Java serialization
+     */
+    protected AbstractPagedStorage(int page_size, int segment_pages, NodeMarshaller marshaller) {
+        if ((page_size <= 0) || (segment_pages <= 0)) {
+            throw new IllegalArgumentException("Page size and segment size must be positive.");
+        }
+
+        if (((long) page_size * segment_pages) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments cannot be larger than 2 GB.");
+        }
+
+        this.page_size = page_size;
+        this.segment_pages = segment_pages;
+        this.marshaller = marshaller;
+        segments = new ArrayList<ByteBuffer>();
+        usedPages = new BitSet();
+        pageIndex = new HashMap<NodeIdentifier, Entry>();
+    }
+
+    public void setParent(SpatialIndex parent) {
+        this.parent = parent;
+    }
+
+    /** Removes all nodes. Segments are kept, and their pages reused.
+     */
+    public synchronized void clear() {
+        pageIndex.clear();
+        usedPages.clear();
+    }
+
+    public Node get(NodeIdentifier id) {
+        byte[] data;
+
+        synchronized (this) {
+            checkOpen();
+
+            Entry e = pageIndex.get(id);
+
+            if (e == null) {
+                return null;
+            }
+
+            data = new byte[e.length];
+            transfer(data, e.start, false);
+        }
+
+        Node node;
+
+        try {
+            node = decode(data);
+            node.init(parent);
+        } catch (IOException e1) {
+            throw new IllegalStateException(e1);
+        } catch (ClassNotFoundException e1) {
+            throw new IllegalStateException(e1);
+        } catch (IllegalAttributeException e1) {
+            throw new IllegalStateException(e1);
+        }
+
+        return node;
+    }
+
+    public void put(Node n) {
+        byte[] data;
+
+        try {
+            data = encode(n);
+        } catch (IOException e1) {
+            throw new IllegalStateException(e1);
+        }
+
+        synchronized (this) {
+            checkOpen();
+
+            Entry e = new Entry();
+            e.length = data.length;
+            write(data, e, pageIndex.get(n.getIdentifier()));
+            pageIndex.put(n.getIdentifier(), e);
+        }
+    }
+
+    byte[] encode(Node n) throws IOException {
+        if (marshaller != null) {
+            return marshaller.marshall(n);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(n);
+        oos.close();
+        baos.close();
+
+        return baos.toByteArray();
+    }
+
+    Node decode(byte[] data)
+        throws IOException, ClassNotFoundException, IllegalAttributeException {
+        if (marshaller != null) {
+            return marshaller.unmarshall(data);
+        }
+
+        ByteArrayInputStream bais = new ByteArrayInputStream(data);
+        ObjectInputStream ois = new ObjectInputStream(bais);
+        Node node = (Node) ois.readObject();
+        ois.close();
+        bais.close();
+
+        return node;
+    }
+
+    /** Writes data to an extent. Node is rewritten in place if its old extent is large enough,
+     * otherwise its old extent is freed before a new one is allocated.
+     */
+    void write(byte[] data, Entry e, Entry old) {
+        int count = pageCount(data.length);
+
+        if ((old != null) && (old.count >= count)) {
+            e.start = old.start;
+            usedPages.clear(old.start + count, old.start + old.count);
+        } else {
+            if (old != null) {
+                usedPages.clear(old.start, old.start + old.count);
+            }
+
+            e.start = allocate(count);
+        }
+
+        e.count = count;
+        usedPages.set(e.start, e.start + count);
+        transfer(data, e.start, true);
+    }
+
+    /** Copies data from or to the extent starting at given page,
+     * with one copy for each segment the extent spans.
+     *
+     * @param data
+     * @param start first page of extent
+     * @param write <code>true</code> to copy data to extent, <code>false</code> to read it
+     */
+    void transfer(byte[] data, int start, boolean write) {
+        int index = 0;
+
+        while (index < data.length) {
+            int page = start + (index / page_size);
+            int len = Math.min(data.length - index,
+                    (segment_pages - (page % segment_pages)) * page_size);
+            ByteBuffer view = page(page);
+
+            if (write) {
+                view.put(data, index, len);
+            } else {
+                view.get(data, index, len);
+            }
+
+            index += len;
+        }
+    }
+
+    /**
+     * @param length of data, in bytes
+     * @return number of pages needed to store length bytes
+     */
+    int pageCount(int length) {
+        return ((length + page_size) - 1) / page_size;
+    }
+
+    /** Finds the first run of free pages large enough.
+     * Pages past the last segment are free, so there is always one.
+     *
+     * @param count number of pages
+     * @return first page of run
+     */
+    int allocate(int count) {
+        int start = usedPages.nextClearBit(0);
+
+        while (true) {
+            int end = usedPages.nextSetBit(start);
+
+            if ((end < 0) || ((end - start) >= count)) {
+                return start;
+            }
+
+            start = usedPages.nextClearBit(end);
+        }
+    }
+
+    public synchronized void remove(NodeIdentifier id) {
+        Entry e = pageIndex.remove(id);
+
+        if (e == null) {
+            throw new IllegalArgumentException("Invalid identifier " + id.toString());
+        }
+
+        usedPages.clear(e.start, e.start + e.count);
+    }
+
+    /**
+     * @return number of pages holding nodes
+     */
+    protected synchronized int getUsedPages() {
+        return usedPages.cardinality();
+    }
+
+    /** Called, with storage locked, before nodes are read or written.
+     * Does nothing by default.
+     *
+     * @throws IllegalStateException if storage cannot be used any more
+     */
+    protected void checkOpen() {
+    }
+
+    /** Allocates a new segment.
+     *
+     * @param segment number of the segment
+     * @param size of the segment, in bytes
+     * @return a buffer of given size
+     * @throws IOException
+     */
+    protected abstract ByteBuffer allocate(int segment, int size)
+        throws IOException;
+
+    /** Gives access to a page, allocating a new segment if required.
+     *
+     * @param page number
+     * @return a view of the segment, positioned at the start of page
+     */
+    ByteBuffer page(int page) {
+        int segment = page / segment_pages;
+
+        while (segments.size() <= segment) {
+            try {
+                segments.add(allocate(segments.size(), page_size * segment_pages));
+            } catch (IOException io) {
+                throw new IllegalStateException(io);
+            }
+        }
+
+        ByteBuffer view = segments.get(segment).duplicate();
+        view.position((page % segment_pages) * page_size);
+
+        return view;
+    }
+
+    class Entry {
+        /**
+         * length of data, in bytes
+         */
+        int length = 0;
+
+        /**
+         * first page of extent
+         */
+        int start;
+
+        /**
+         * number of pages in extent
+         */
+        int count;
+    }
+}
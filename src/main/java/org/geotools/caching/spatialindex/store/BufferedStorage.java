@@ -0,0 +1,307 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.store;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.PersistentStorage;
+import org.geotools.caching.spatialindex.SpatialIndex;
+import org.geotools.caching.spatialindex.Storage;
+import org.geotools.caching.spatialindex.grid.GridNode;
+
+
+/** A storage keeping recently used nodes on heap, in front of another storage,
+ * so that nodes read again and again are not decoded each time.
+ * Buffer is bounded by a number of nodes, and optionally by an estimated size in bytes ;
+ * least recently used nodes are evicted first.
+ * Nodes are written back : put only updates buffer,
+ * and modified nodes are written to the underlying storage when evicted, or on flush().
+ *
+ * As with MemoryStorage, buffered nodes are shared with callers,
+ * so the index must not modify a node while another thread may put another node.
+ * Nodes missing from buffer are read from the underlying storage without holding the buffer,
+ * which must then be safe for use by several threads.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
+public class BufferedStorage implements PersistentStorage {
+    /**
+     * estimated size of a node, excluding data
+     */
+    public static final int NODE_OVERHEAD = 128;
+    private Storage storage;
+    private int capacity;
+    private long max_size;
+    private long size = 0;
+    private LinkedHashMap<NodeIdentifier, Entry> buffer;
+    private long hits = 0;
+    private long misses = 0;
+    private long writes = 0;
+
+    /**
+     * number of changes to underlying storage, used to detect stale reads
+     */
+    private long modifications = 0;
+
+    /**
+     * @param storage underlying storage
+     * @param capacity max number of buffered nodes
+     */
+    public BufferedStorage(Storage storage, int capacity) {
+        this(storage, capacity, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param storage underlying storage
+     * @param capacity max number of buffered nodes
+     * @param max_size max estimated size of buffered nodes, in bytes
+     */
+    public BufferedStorage(Storage storage, int capacity, long max_size) {
+        if ((capacity <= 0) || (max_size <= 0)) {
+            throw new IllegalArgumentException("Buffer capacity must be positive.");
+        }
+
+        this.storage = storage;
+        this.capacity = capacity;
+        this.max_size = max_size;
+        this.buffer = new LinkedHashMap<NodeIdentifier, Entry>(16, 0.75f, true);
+    }
+
+    public Node get(NodeIdentifier id) {
+        while (true) {
+            long seen;
+
+            synchronized (this) {
+                Entry e = buffer.get(id);
+
+                if (e != null) {
+                    hits++;
+
+                    return e.node;
+                }
+
+                misses++;
+                seen = modifications;
+            }
+
+            // underlying storage may decode node, other threads can use buffer meanwhile
+            Node n = storage.get(id);
+
+            synchronized (this) {
+                Entry e = buffer.get(id);
+
+                if (e != null) {
+                    // node was put, or read by another thread meanwhile : keep buffered one
+                    return e.node;
+                }
+
+                if (seen == modifications) {
+                    if (n != null) {
+                        buffer(n, false);
+                    }
+
+                    return n;
+                }
+            }
+
+            // underlying storage was modified meanwhile, node read may be stale
+        }
+    }
+
+    public synchronized void put(Node n) {
+        Entry old = buffer.remove(n.getIdentifier());
+
+        if (old != null) {
+            size -= old.size;
+        }
+
+        buffer(n, true);
+    }
+
+    void buffer(Node n, boolean dirty) {
+        Entry e = new Entry();
+        e.node = n;
+        e.dirty = dirty;
+        e.size = estimateSize(n);
+        buffer.put(n.getIdentifier(), e);
+        size += e.size;
+
+        // evict least recently used nodes, but always keep the last one
+        for (Iterator<Entry> it = buffer.values().iterator();
+                ((buffer.size() > capacity) || (size > max_size)) && (buffer.size() > 1);) {
+            Entry eldest = it.next();
+            it.remove();
+            size -= eldest.size;
+
+            if (eldest.dirty) {
+                write(eldest.node);
+            }
+        }
+    }
+
+    void write(Node n) {
+        storage.put(n);
+        writes++;
+        modifications++;
+    }
+
+    /** Estimates heap size of a node, used to enforce the byte budget of buffer.
+     *
+     * @param n
+     * @return estimated size, in bytes
+     */
+    protected long estimateSize(Node n) {
+        if (n instanceof GridNode) {
+            return NODE_OVERHEAD + ((GridNode) n).getDataSize();
+        } else {
+            return NODE_OVERHEAD;
+        }
+    }
+
+    public synchronized void remove(NodeIdentifier id) {
+        Entry e = buffer.remove(id);
+        modifications++;
+
+        if (e != null) {
+            size -= e.size;
+        }
+
+        try {
+            storage.remove(id);
+        } catch (IllegalArgumentException iae) {
+            if (e == null) {
+                throw iae;
+            }
+
+            // node was only buffered
+        }
+    }
+
+    public synchronized void clear() {
+        buffer.clear();
+        size = 0;
+        modifications++;
+        storage.clear();
+    }
+
+    public void setParent(SpatialIndex index) {
+        storage.setParent(index);
+    }
+
+    /** Writes modified nodes to the underlying storage. Nodes remain buffered.
+     */
+    public synchronized void flush() {
+        for (Iterator<Entry> it = buffer.values().iterator(); it.hasNext();) {
+            Entry e = it.next();
+
+            if (e.dirty) {
+                write(e.node);
+                e.dirty = false;
+            }
+        }
+    }
+
+    /** Flushes buffer, then checkpoints underlying storage.
+     *
+     * @throws UnsupportedOperationException if underlying storage is not persistent
+     */
+    public synchronized void checkpoint(byte[] properties)
+        throws IOException {
+        if (!(storage instanceof PersistentStorage)) {
+            throw new UnsupportedOperationException("Storage is not persistent : " + storage);
+        }
+
+        flush();
+        ((PersistentStorage) storage).checkpoint(properties);
+    }
+
+    public byte[] getProperties() {
+        if (storage instanceof PersistentStorage) {
+            return ((PersistentStorage) storage).getProperties();
+        } else {
+            return null;
+        }
+    }
+
+    /** Flushes buffer, then closes underlying storage if it is persistent.
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        buffer.clear();
+        size = 0;
+
+        if (storage instanceof PersistentStorage) {
+            ((PersistentStorage) storage).close();
+        }
+    }
+
+    /**
+     * @return the storage behind this buffer
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return number of nodes found in buffer
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of nodes read from underlying storage
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of nodes written to underlying storage
+     */
+    public synchronized long getWriteBacks() {
+        return writes;
+    }
+
+    /**
+     * @return number of nodes currently in buffer
+     */
+    public synchronized int getBufferedCount() {
+        return buffer.size();
+    }
+
+    /**
+     * @return estimated size of nodes currently in buffer, in bytes
+     */
+    public synchronized long getBufferedSize() {
+        return size;
+    }
+
+    public synchronized String toString() {
+        return "BufferedStorage [hits = " + hits + " ; misses = " + misses + " ; writes = "
+        + writes + "] on " + storage;
+    }
+
+    class Entry {
+        Node node;
+        boolean dirty;
+        long size;
+    }
+}
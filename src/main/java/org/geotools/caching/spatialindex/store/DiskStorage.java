@@ -15,220 +15,996 @@
  */
 package org.geotools.caching.spatialindex.store;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.TreeSet;
-import org.geotools.caching.grid.GridNodeMarshaller;
-import org.geotools.caching.grid.GridTracker;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import org.geotools.caching.spatialindex.Node;
 import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.PersistentStorage;
 import org.geotools.caching.spatialindex.SpatialIndex;
-import org.geotools.caching.spatialindex.Storage;
-import org.geotools.caching.spatialindex.grid.Grid;
 import org.geotools.feature.IllegalAttributeException;
 
 
-public class DiskStorage implements Storage {
+/** A storage writing nodes to a file, split into pages of fixed size.
+ * Each node is written to an extent, ie a run of contiguous pages,
+ * so it is read or written with a single positioned I/O on the file channel.
+ * Extents are allocated first fit from a bitmap of used pages,
+ * and compact() moves nodes towards the start of the file to defragment it.
+ * Each record starts with the length and checksum of the node,
+ * and nodes which fail to match their record are dropped : get() returns <code>null</code>,
+ * as if they had never been stored.
+ * Pages are read with positioned reads into buffers allocated per call,
+ * and nodes are inflated and decoded outside the lock of storage,
+ * so several threads may read nodes at the same time.
+ * Likewise, nodes are encoded and compressed by the threads putting them, without locking,
+ * and only the allocation and writing of pages are serialized.
+ * Nodes are encoded with the given NodeMarshaller, or with Java serialization if none is given :
+ * the marshaller must be thread-safe.
+ *
+ * On checkpoint, the page index and the list of free pages are saved in an index file
+ * next to the data file, named after it with the <code>.idx</code> extension.
+ * Storage opened on a data file with a valid index file is reopened with its content.
+ * The index file is deleted as soon as storage is modified after checkpoint,
+ * so a storage not closed properly restarts empty rather than with a stale index.
+ *
+ * Storage may write nodes behind, in a background thread : see setWriteBehind().
+ * Nodes may be compressed before being split into pages : see setCompressionLevel().
+ *
+ */
+public class DiskStorage implements PersistentStorage {
+    static final int MAGIC = 0x47444958;
+    static final int VERSION = 4;
+
+    /**
+     * size of the header of node records : length and CRC32 of data
+     */
+    static final int HEADER_SIZE = 8;
     private RandomAccessFile data_file;
+    private File index_file;
+
+    /**
+     * <code>true</code> while index file matches data file
+     */
+    private boolean clean = false;
+    private byte[] properties = null;
     private int page_size;
+
+    /**
+     * number of pages in file, including free pages
+     */
     private int nextPage = 0;
-    private TreeSet<Integer> emptyPages;
+
+    /**
+     * pages used by nodes
+     */
+    private BitSet usedPages;
     private HashMap<NodeIdentifier, Entry> pageIndex;
-    private byte[] buffer;
+    FileChannel channel;
+
+    /**
+     * held to read pages, and exclusively to write pages, so that pages are not overwritten
+     * while being read. It is always taken before the lock on storage.
+     */
+    private ReentrantReadWriteLock io = new ReentrantReadWriteLock();
+    private NodeMarshaller marshaller;
     protected SpatialIndex parent;
 
+    /**
+     * dirty nodes, waiting for the background writer, if write-behind is enabled
+     */
+    private LinkedHashMap<NodeIdentifier, byte[]> pending =
+        new LinkedHashMap<NodeIdentifier, byte[]>();
+
+    /**
+     * nodes taken by the background writer, not written yet
+     */
+    private HashMap<NodeIdentifier, byte[]> inflight = new HashMap<NodeIdentifier, byte[]>();
+    private int pending_capacity = 0;
+    private Thread writer = null;
+    private RuntimeException failure = null;
+    private int corrupted = 0;
+
+    /**
+     * Deflater level used to compress nodes, or 0 if nodes are not compressed
+     */
+    private int compression_level = 0;
+
     public DiskStorage(File f, int page_size) throws IOException {
+        this(f, page_size, null);
+    }
+
+    /**
+     * @param f data file
+     * @param page_size in bytes
+     * @param marshaller codec used to encode nodes, or <code>null</code> to use Java serialization
+     * @throws IOException
+     */
+    public DiskStorage(File f, int page_size, NodeMarshaller marshaller)
+        throws IOException {
         data_file = new RandomAccessFile(f, "rw");
         this.page_size = page_size;
-        emptyPages = new TreeSet<Integer>();
+        this.marshaller = marshaller;
+        usedPages = new BitSet();
         pageIndex = new HashMap<NodeIdentifier, Entry>();
-        buffer = new byte[page_size];
+        channel = data_file.getChannel();
+        index_file = new File(f.getPath() + ".idx");
+        load();
     }
 
-    public void setParent(SpatialIndex parent) {
-        this.parent = parent;
+    /** Reads the index file, if any.
+     * If it cannot be read, or was written with another page size, storage starts empty.
+     */
+    void load() {
+        if (!index_file.exists()) {
+            return;
+        }
+
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(
+                        new FileInputStream(index_file)));
+
+            try {
+                if ((ois.readInt() != MAGIC) || (ois.readInt() != VERSION)
+                        || (ois.readInt() != page_size)) {
+                    throw new IOException("Index file does not match storage : " + index_file);
+                }
+
+                nextPage = ois.readInt();
+
+                int count = ois.readInt();
+
+                for (int i = 0; i < count; i++) {
+                    NodeIdentifier id = (NodeIdentifier) ois.readObject();
+                    Entry e = new Entry();
+                    e.length = ois.readInt();
+                    e.raw_length = ois.readInt();
+                    e.start = ois.readInt();
+                    e.count = ois.readInt();
+                    usedPages.set(e.start, e.start + e.count);
+                    pageIndex.put(id, e);
+                }
+
+                properties = new byte[ois.readInt()];
+                ois.readFully(properties);
+                clean = true;
+            } finally {
+                ois.close();
+            }
+        } catch (IOException e) {
+            reset();
+        } catch (ClassNotFoundException e) {
+            reset();
+        }
+    }
+
+    void reset() {
+        nextPage = 0;
+        usedPages.clear();
+        pageIndex.clear();
+        properties = null;
+        clean = false;
+        index_file.delete();
+    }
+
+    /** Forces pages to disk, then writes the index file.
+     * The index file is written aside, and renamed once complete.
+     */
+    public synchronized void checkpoint(byte[] properties)
+        throws IOException {
+        drain();
+        data_file.getFD().sync();
+
+        File tmp = new File(index_file.getPath() + ".tmp");
+        ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+
+        try {
+            oos.writeInt(MAGIC);
+            oos.writeInt(VERSION);
+            oos.writeInt(page_size);
+            oos.writeInt(nextPage);
+            oos.writeInt(pageIndex.size());
+
+            for (Iterator<java.util.Map.Entry<NodeIdentifier, Entry>> it = pageIndex.entrySet()
+                                                                                    .iterator();
+                    it.hasNext();) {
+                java.util.Map.Entry<NodeIdentifier, Entry> next = it.next();
+                Entry e = next.getValue();
+                oos.writeObject(next.getKey());
+                oos.writeInt(e.length);
+                oos.writeInt(e.raw_length);
+                oos.writeInt(e.start);
+                oos.writeInt(e.count);
+            }
+
+            oos.writeInt(properties.length);
+            oos.write(properties);
+            oos.flush();
+        } finally {
+            oos.close();
+        }
+
+        index_file.delete();
+
+        if (!tmp.renameTo(index_file)) {
+            throw new IOException("Cannot write index file : " + index_file);
+        }
+
+        this.properties = properties;
+        clean = true;
+    }
+
+    public synchronized byte[] getProperties() {
+        return properties;
     }
 
-    public void clear() {
-        for (Iterator<java.util.Map.Entry<NodeIdentifier, Entry>> it = pageIndex.entrySet()
-                                                                                .iterator();
-                it.hasNext();) {
-            java.util.Map.Entry<NodeIdentifier, Entry> next = it.next();
-            Entry e = next.getValue();
-            int n = 0;
+    /** Writes buffered nodes, and closes the data file.
+     * The file is closed even if the background writer has failed,
+     * in which case its failure is thrown afterwards.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            setWriteBehind(0);
+        } finally {
+            io.writeLock().lock();
 
-            while (n < e.pages.size()) {
-                emptyPages.add(e.pages.get(n));
-                n++;
+            try {
+                synchronized (this) {
+                    data_file.close();
+                }
+            } finally {
+                io.writeLock().unlock();
             }
+        }
+    }
 
-            it.remove();
+    /** Invalidates the index file, before storage is modified.
+     */
+    void touch() {
+        if (clean) {
+            index_file.delete();
+            clean = false;
         }
     }
 
-    public Node get(NodeIdentifier id) {
-        Entry e = pageIndex.get(id);
+    public void setParent(SpatialIndex parent) {
+        this.parent = parent;
+    }
 
-        if (e == null) {
-            return null;
+    public synchronized void clear() {
+        touch();
+
+        if (writer != null) {
+            pending.clear();
+            inflight.clear();
+            notifyAll();
         }
 
-        byte[] data = new byte[e.length];
-        int page;
-        int rem = data.length;
-        int len;
-        int next = 0;
-        int index = 0;
+        pageIndex.clear();
+        usedPages.clear();
+        nextPage = 0;
+    }
+
+    public Node get(NodeIdentifier id) {
+        io.readLock().lock();
+
+        try {
+            Entry e;
+            byte[] buffered = null;
+
+            synchronized (this) {
+                if (writer != null) { // read nodes not written yet
+                    buffered = pending.get(id);
+
+                    if (buffered == null) {
+                        buffered = inflight.get(id);
+                    }
+                }
+
+                e = pageIndex.get(id);
+
+                if ((buffered == null) && (e == null)) {
+                    return null;
+                }
+            }
 
-        while (next < e.pages.size()) {
-            page = e.pages.get(next);
-            len = (rem > page_size) ? page_size : rem;
+            // buffered data is never modified, and is decoded unlocked
+            if (buffered != null) {
+                try {
+                    return toNode(buffered);
+                } catch (IOException io) {
+                    throw new IllegalStateException(io);
+                }
+            }
 
+            // pages cannot be overwritten while we hold the io lock, so they are read unlocked,
+            // and decoded unlocked as well, so that concurrent readers only wait for each other
+            // to look up the index
             try {
-                data_file.seek(page * page_size);
+                byte[] data = read(e);
 
-                int bytes_read = data_file.read(buffer);
+                if (data == null) {
+                    throw new IOException("Checksum error");
+                }
 
-                if (bytes_read != page_size) {
-                    throw new IllegalStateException("Data file might be corrupted.");
+                if (e.raw_length >= 0) {
+                    data = inflate(data, e.raw_length);
                 }
 
-                System.arraycopy(buffer, 0, data, index, len);
-                rem -= bytes_read;
-                index += bytes_read;
-                next++;
+                return toNode(data);
             } catch (IOException io) {
-                throw new IllegalStateException(io);
+                synchronized (this) {
+                    drop(id, e);
+                }
+
+                return null;
             }
+        } finally {
+            io.readLock().unlock();
         }
+    }
 
-        Node node = null;
+    Node toNode(byte[] data) throws IOException {
+        Node node;
 
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);
-            ObjectInputStream ois = new ObjectInputStream(bais);
-            node = (Node) ois.readObject();
-            node.init(parent);
-            ois.close();
-            bais.close();
-        } catch (IOException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
+            node = decode(data);
         } catch (ClassNotFoundException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
+            throw (IOException) new IOException("Cannot decode node").initCause(e1);
+        } catch (IllegalAttributeException e1) {
+            throw (IOException) new IOException("Cannot decode node").initCause(e1);
         }
 
+        node.init(parent);
+
         return node;
     }
 
+    /** Drops a node which cannot be read, unless it has been written again meanwhile.
+     * The index will find it missing, and should consider it lost.
+     */
+    void drop(NodeIdentifier id, Entry e) {
+        if (pageIndex.get(id) == e) {
+            touch();
+            pageIndex.remove(id);
+            usedPages.clear(e.start, e.start + e.count);
+            corrupted++;
+        }
+    }
+
+    /**
+     * @return number of nodes dropped because they could not be read back
+     */
+    public synchronized int getCorruptedCount() {
+        return corrupted;
+    }
+
+    /** Reads the record of a node, with one positioned read, which does not move the file pointer.
+     * Caller must hold the io lock.
+     *
+     * @return data of node, or <code>null</code> if record header does not match data
+     */
+    byte[] read(Entry e) {
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + e.length);
+        long position = (long) e.start * page_size;
+
+        try {
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, position + bb.position()) < 0) {
+                    return null; // truncated file
+                }
+            }
+        } catch (IOException io) {
+            throw new IllegalStateException(io);
+        }
+
+        bb.flip();
+
+        int length = bb.getInt();
+        int crc = bb.getInt();
+
+        if ((length != e.length) || (crc != checksum(bb.array(), HEADER_SIZE, length))) {
+            return null;
+        }
+
+        byte[] data = new byte[length];
+        bb.get(data);
+
+        return data;
+    }
+
+    int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+
+        return (int) crc.getValue();
+    }
+
+    /** Stores a node. Node is encoded and compressed by the calling thread, without locking,
+     * so that several threads may put nodes at the same time :
+     * storage is locked only to allocate pages and write them.
+     */
     public void put(Node n) {
-        byte[] data = null;
+        byte[] data;
 
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(n);
-            data = baos.toByteArray();
-            oos.close();
-            baos.close();
+            data = encode(n);
         } catch (IOException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
+            throw new IllegalStateException(e1);
+        }
+
+        int level;
+
+        synchronized (this) {
+            touch();
+
+            if (writer != null) {
+                buffer(n.getIdentifier(), data);
+
+                return;
+            }
+
+            level = compression_level;
         }
 
+        byte[] compressed = compress(data, level);
+        io.writeLock().lock();
+
+        try {
+            synchronized (this) {
+                write(n.getIdentifier(), data, compressed);
+            }
+        } finally {
+            io.writeLock().unlock();
+        }
+    }
+
+    void write(NodeIdentifier id, byte[] data) {
+        write(id, data, compress(data, compression_level));
+    }
+
+    /**
+     * @param id
+     * @param data encoded node
+     * @param compressed data, or <code>null</code> to store data as is
+     */
+    void write(NodeIdentifier id, byte[] data, byte[] compressed) {
         Entry e = new Entry();
 
-        if (pageIndex.containsKey(n.getIdentifier())) {
-            Entry oldEntry = pageIndex.get(n.getIdentifier());
+        if (compressed != null) {
+            e.raw_length = data.length;
+            data = compressed;
+        }
+
+        // node put again reuses its old extent if possible
+        e.length = data.length;
+        write(data, e, pageIndex.get(id));
+        pageIndex.put(id, e);
+    }
 
-            if (oldEntry == null) {
-                // problem
+    /** Compresses data, with a Deflater of its own, so that writers do not wait for each other.
+     *
+     * @param data
+     * @param level Deflater level, or 0 if nodes are not compressed
+     * @return compressed data, or <code>null</code> if data is to be stored as is,
+     *         because compression is disabled or data does not compress
+     */
+    byte[] compress(byte[] data, int level) {
+        if (level == 0) {
+            return null;
+        }
+
+        Deflater deflater = new Deflater(level);
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[page_size];
+            int len;
+
+            while (!deflater.finished()) {
+                len = deflater.deflate(buffer);
+                baos.write(buffer, 0, len);
             }
 
-            e.length = data.length;
-            //pageIndex.remove(n.getIdentifier()) ;
-            write(data, e, oldEntry);
-        } else {
-            e.length = data.length;
-            write(data, e, null);
+            byte[] compressed = baos.toByteArray();
+
+            return (compressed.length < data.length) ? compressed : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Inflates a compressed node, with an Inflater of its own, so that readers do not wait
+     * for each other.
+     */
+    byte[] inflate(byte[] data, int raw_length) throws IOException {
+        byte[] raw = new byte[raw_length];
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+
+        try {
+            if ((inflater.inflate(raw) != raw_length) || !inflater.finished()) {
+                throw new IOException("Data file might be corrupted.");
+            }
+        } catch (DataFormatException dfe) {
+            throw (IOException) new IOException("Data file might be corrupted.").initCause(dfe);
+        } finally {
+            inflater.end();
         }
 
-        pageIndex.put(n.getIdentifier(), e);
+        return raw;
     }
 
-    void write(byte[] data, Entry e, Entry old) {
-        int rem = data.length;
-        int page;
-        int len;
-        int index = 0;
-        int next = 0;
-
-        while (rem > 0) {
-            if ((old != null) && (next < old.pages.size())) {
-                page = old.pages.get(next);
-                next++;
-            } else if (!emptyPages.isEmpty()) {
-                Integer i = emptyPages.first();
-                page = i.intValue();
-                emptyPages.remove(i);
-            } else {
-                page = nextPage++;
-            }
-
-            len = (rem > page_size) ? page_size : rem;
-            System.arraycopy(data, index, buffer, 0, len);
+    /** Enables or disables compression of nodes, before they are split into pages.
+     * Only nodes written afterwards are affected, and nodes which do not compress are stored as is,
+     * so this can be changed at any time.
+     *
+     * @param level Deflater level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION,
+     *        or 0 to store nodes uncompressed
+     */
+    public synchronized void setCompressionLevel(int level) {
+        if ((level < 0) || (level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level : " + level);
+        }
+
+        compression_level = level;
+    }
+
+    /**
+     * @return Deflater level used to compress nodes, or 0 if nodes are not compressed
+     */
+    public synchronized int getCompressionLevel() {
+        return compression_level;
+    }
+
+    /** Adds a node to the dirty buffer, replacing any version of the node not written yet.
+     * Blocks while the buffer is full.
+     */
+    void buffer(NodeIdentifier id, byte[] data) {
+        checkWriter();
 
+        while ((pending.size() >= pending_capacity) && !pending.containsKey(id)) {
             try {
-                data_file.seek(page * page_size);
-                data_file.write(buffer);
-            } catch (IOException io) {
-                // TODO
-                throw new IllegalStateException(io);
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+
+            checkWriter();
+        }
+
+        pending.put(id, data);
+        notifyAll();
+    }
+
+    void checkWriter() {
+        if (failure != null) {
+            throw new IllegalStateException("Background writer failed", failure);
+        }
+    }
+
+    /** Enables or disables write-behind :
+     * nodes are encoded when put, and kept in a bounded buffer of dirty nodes,
+     * which a background thread writes to disk in batches, by increasing page number.
+     * Nodes put again before being written are only written once.
+     * Nodes are read from the buffer until they are written,
+     * and checkpoint() and close() wait until the buffer is written.
+     * Disabling write-behind writes buffered nodes first.
+     *
+     * @param capacity max number of dirty nodes, or 0 to write nodes synchronously
+     * @throws IllegalStateException if write-behind is disabled after the background writer failed
+     */
+    public void setWriteBehind(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must be positive : " + capacity);
+        }
+
+        Thread stopped = null;
+        RuntimeException failed = null;
+
+        synchronized (this) {
+            pending_capacity = capacity;
+
+            if ((capacity > 0) && (writer == null)) {
+                writer = new Thread(new Writer(), "DiskStorage writer");
+                writer.setDaemon(true);
+                writer.start();
+            } else if ((capacity == 0) && (writer != null)) {
+                // writer is stopped even if it has failed, and its failure reported once
+                try {
+                    drain();
+                } catch (RuntimeException e) {
+                    failed = e;
+                }
+
+                stopped = writer;
+                writer = null;
+                failure = null;
+                notifyAll();
+            }
+        }
+
+        if (stopped != null) {
+            try {
+                stopped.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    /**
+     * @return capacity of the buffer of dirty nodes, or 0 if nodes are written synchronously
+     */
+    public synchronized int getWriteBehind() {
+        return pending_capacity;
+    }
+
+    /** Waits until all buffered nodes have been written.
+     */
+    void drain() {
+        while ((writer != null) && (!pending.isEmpty() || !inflight.isEmpty())) {
+            checkWriter();
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        checkWriter();
+    }
+
+    /** Background writer : takes all dirty nodes at once,
+     * then writes them one at a time, by increasing page number,
+     * releasing the lock between nodes so that readers are not blocked by a whole batch.
+     */
+    class Writer implements Runnable {
+        public void run() {
+            Thread self = Thread.currentThread();
+
+            while (true) {
+                List<NodeIdentifier> batch;
+
+                synchronized (DiskStorage.this) {
+                    while (pending.isEmpty() && (writer == self)) {
+                        try {
+                            DiskStorage.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+
+                    if (pending.isEmpty()) { // stopped
+                        return;
+                    }
+
+                    inflight.putAll(pending);
+                    pending.clear();
+                    DiskStorage.this.notifyAll();
+                    batch = new ArrayList<NodeIdentifier>(inflight.keySet());
+                    Collections.sort(batch,
+                        new Comparator<NodeIdentifier>() {
+                            public int compare(NodeIdentifier id1, NodeIdentifier id2) {
+                                return firstPage(id1) - firstPage(id2);
+                            }
+                        });
+                }
+
+                for (Iterator<NodeIdentifier> it = batch.iterator(); it.hasNext();) {
+                    NodeIdentifier id = it.next();
+                    io.writeLock().lock();
+
+                    try {
+                        synchronized (DiskStorage.this) {
+                            byte[] data = inflight.remove(id);
+
+                            if (data != null) { // unless removed meanwhile
+                                try {
+                                    write(id, data);
+                                } catch (RuntimeException e) {
+                                    failure = e;
+                                    inflight.clear();
+                                    DiskStorage.this.notifyAll();
+
+                                    return;
+                                }
+                            }
+
+                            if (inflight.isEmpty()) {
+                                DiskStorage.this.notifyAll();
+                            }
+                        }
+                    } finally {
+                        io.writeLock().unlock();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return first page of node, or a page after all others if node is new
+         */
+        int firstPage(NodeIdentifier id) {
+            Entry e = pageIndex.get(id);
+
+            return (e == null) ? Integer.MAX_VALUE : e.start;
+        }
+    }
+
+    byte[] encode(Node n) throws IOException {
+        if (marshaller != null) {
+            return marshaller.marshall(n);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(n);
+        oos.close();
+        baos.close();
+
+        return baos.toByteArray();
+    }
+
+    Node decode(byte[] data)
+        throws IOException, ClassNotFoundException, IllegalAttributeException {
+        if (marshaller != null) {
+            return marshaller.unmarshall(data);
+        }
+
+        ByteArrayInputStream bais = new ByteArrayInputStream(data);
+        ObjectInputStream ois = new ObjectInputStream(bais);
+        Node node = (Node) ois.readObject();
+        ois.close();
+        bais.close();
+
+        return node;
+    }
+
+    /** Writes data to an extent. Node is rewritten in place if its old extent is large enough,
+     * otherwise its old extent is freed before a new one is allocated.
+     */
+    void write(byte[] data, Entry e, Entry old) {
+        int count = pageCount(data.length);
+
+        if ((old != null) && (old.count >= count)) {
+            e.start = old.start;
+            usedPages.clear(old.start + count, old.start + old.count);
+        } else {
+            if (old != null) {
+                usedPages.clear(old.start, old.start + old.count);
             }
 
-            rem -= len;
-            index += len;
-            e.pages.add(new Integer(page));
+            e.start = allocate(count, Integer.MAX_VALUE);
+        }
+
+        e.count = count;
+        write(data, e.start);
+    }
+
+    /** Writes the record of a node : a header holding length and checksum of data, then data.
+     */
+    void write(byte[] data, int start) {
+        usedPages.set(start, start + pageCount(data.length));
+        nextPage = Math.max(nextPage, usedPages.length());
+
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        bb.putInt(data.length);
+        bb.putInt(checksum(data, 0, data.length));
+        bb.put(data);
+        bb.flip();
+
+        long position = (long) start * page_size;
+
+        try {
+            while (bb.hasRemaining()) {
+                channel.write(bb, position + bb.position());
+            }
+        } catch (IOException io) {
+            // a record rewritten in place may be left partly written :
+            // it will not match its checksum, and will be dropped when read
+            throw new IllegalStateException(io);
+        }
+    }
+
+    /**
+     * @param length of data, in bytes
+     * @return number of pages needed to store a record of length bytes
+     */
+    int pageCount(int length) {
+        return ((length + HEADER_SIZE + page_size) - 1) / page_size;
+    }
+
+    /** Finds the first run of free pages large enough, ending before limit.
+     * Pages past the end of file are free, so there is always one if limit is not reached.
+     *
+     * @param count number of pages
+     * @param limit
+     * @return first page of run, or -1 if there is no such run
+     */
+    int allocate(int count, int limit) {
+        int start = usedPages.nextClearBit(0);
+
+        while ((start + count) <= limit) {
+            int end = usedPages.nextSetBit(start);
+
+            if ((end < 0) || ((end - start) >= count)) {
+                return start;
+            }
+
+            start = usedPages.nextClearBit(end);
+        }
+
+        return -1;
+    }
+
+    /** Defragments the file : nodes are moved, from the last one,
+     * to the first free extent large enough before them, then the file is truncated.
+     * Storage is locked for one node at a time, so it can be used while being compacted.
+     *
+     * @return number of nodes moved
+     * @throws IOException
+     */
+    public int compact() throws IOException {
+        List<NodeIdentifier> ids;
+
+        synchronized (this) {
+            ids = new ArrayList<NodeIdentifier>(pageIndex.keySet());
+            Collections.sort(ids,
+                new Comparator<NodeIdentifier>() {
+                    public int compare(NodeIdentifier id1, NodeIdentifier id2) {
+                        return pageIndex.get(id2).start - pageIndex.get(id1).start;
+                    }
+                });
+        }
+
+        int moved = 0;
+
+        for (Iterator<NodeIdentifier> it = ids.iterator(); it.hasNext();) {
+            NodeIdentifier id = it.next();
+            io.writeLock().lock();
+
+            try {
+                synchronized (this) {
+                    Entry e = pageIndex.get(id);
+
+                    if (e == null) { // removed meanwhile
+                        continue;
+                    }
+
+                    int start = allocate(e.count, e.start);
+
+                    if (start >= 0) {
+                        touch();
+
+                        byte[] data = read(e);
+
+                        if (data == null) {
+                            drop(id, e);
+
+                            continue;
+                        }
+
+                        usedPages.clear(e.start, e.start + e.count);
+                        write(data, start);
+                        e.start = start;
+                        moved++;
+                    }
+                }
+            } finally {
+                io.writeLock().unlock();
+            }
         }
 
-        if (old != null) { // don't forget to recycle pages
+        io.writeLock().lock();
 
-            while (next < old.pages.size()) {
-                emptyPages.add(new Integer(old.pages.get(next)));
-                next++;
+        try {
+            synchronized (this) {
+                if (usedPages.length() < nextPage) {
+                    touch();
+                    nextPage = usedPages.length();
+                    channel.truncate((long) nextPage * page_size);
+                }
             }
+        } finally {
+            io.writeLock().unlock();
         }
+
+        return moved;
     }
 
-    public void remove(NodeIdentifier id) {
+    /**
+     * @return size of data file, in pages
+     */
+    public synchronized int getPageCount() {
+        return nextPage;
+    }
+
+    /**
+     * @return number of pages not used by any node
+     */
+    public synchronized int getFreePageCount() {
+        return nextPage - usedPages.cardinality();
+    }
+
+    public synchronized void remove(NodeIdentifier id) {
+        touch();
+
+        boolean buffered = false;
+
+        if (writer != null) {
+            buffered = (pending.remove(id) != null) | (inflight.remove(id) != null);
+            notifyAll();
+        }
+
         Entry e = pageIndex.get(id);
 
         if (e == null) {
-            // problem
+            if (buffered) { // never written
+                return;
+            }
+
             throw new IllegalArgumentException("Invalid identifier " + id.toString());
         }
 
         pageIndex.remove(id);
-
-        int next = 0;
-
-        while (next < e.pages.size()) {
-            emptyPages.add(new Integer(e.pages.get(next)));
-            next++;
-        }
+        usedPages.clear(e.start, e.start + e.count);
     }
 
     class Entry {
+        /**
+         * length of data, in bytes, as stored : after compression, and excluding record header
+         */
         int length = 0;
-        ArrayList<Integer> pages = new ArrayList<Integer>();
+
+        /**
+         * length of node before compression, or -1 if node is not compressed
+         */
+        int raw_length = -1;
+
+        /**
+         * first page of extent
+         */
+        int start = 0;
+
+        /**
+         * number of pages in extent
+         */
+        int count = 0;
     }
 }
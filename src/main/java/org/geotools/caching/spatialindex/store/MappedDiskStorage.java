@@ -0,0 +1,115 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+
+
+/** A storage writing nodes to a memory-mapped file, split into pages of fixed size.
+ * This is a drop-in alternative to DiskStorage, using the same page layout :
+ * rather than seeking and reading pages through a buffer,
+ * pages are copied directly from and to mapped segments of the file,
+ * and the OS page cache does the buffering.
+ * The file is mapped in segments of a fixed number of pages, so pages never span two segments ;
+ * new segments are mapped as the file grows.
+ * Nodes are encoded with the given NodeMarshaller, or with Java serialization if none is given.
+ *
+ * This storage is not a PersistentStorage : the index of pages is kept in memory only,
+ * so the file is scratch space, and its content cannot be reopened once storage is closed.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
+public class MappedDiskStorage extends AbstractPagedStorage {
+    /**
+     * Default size of mapped segments, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private RandomAccessFile data_file;
+    private FileChannel channel;
+    private boolean closed = false;
+
+    public MappedDiskStorage(File f, int page_size) throws IOException {
+        this(f, page_size, Math.max(1, DEFAULT_SEGMENT_SIZE / page_size));
+    }
+
+    public MappedDiskStorage(File f, int page_size, int segment_pages)
+        throws IOException {
+        this(f, page_size, segment_pages, null);
+    }
+
+    /**
+     * @param f data file
+     * @param page_size in bytes
+     * @param segment_pages number of pages in each mapped segment
+     * @param marshaller codec used to encode nodes, or <code>null</code> to use Java serialization
+     * @throws IOException
+     */
+    public MappedDiskStorage(File f, int page_size, int segment_pages, NodeMarshaller marshaller)
+        throws IOException {
+        super(page_size, segment_pages, marshaller);
+        data_file = new RandomAccessFile(f, "rw");
+        channel = data_file.getChannel();
+    }
+
+    /** Forces changes made to mapped segments to be written to disk.
+     */
+    public synchronized void force() {
+        for (Iterator<ByteBuffer> it = segments.iterator(); it.hasNext();) {
+            ((MappedByteBuffer) it.next()).force();
+        }
+    }
+
+    /** Forces mapped segments to disk, and closes the file.
+     * Segments stay mapped until they are garbage collected, as Java cannot unmap them explicitly.
+     * Storage cannot be used afterwards : get and put then throw IllegalStateException.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            force();
+            segments.clear();
+        } finally {
+            data_file.close();
+        }
+    }
+
+    protected void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Storage is closed.");
+        }
+    }
+
+    /** Maps a new segment of the file, growing the file if required.
+     */
+    protected ByteBuffer allocate(int segment, int size)
+        throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, (long) segment * size, size);
+    }
+}
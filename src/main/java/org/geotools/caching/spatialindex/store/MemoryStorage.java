@@ -15,24 +15,24 @@
  */
 package org.geotools.caching.spatialindex.store;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import org.geotools.caching.spatialindex.Node;
 import org.geotools.caching.spatialindex.NodeIdentifier;
 import org.geotools.caching.spatialindex.SpatialIndex;
 import org.geotools.caching.spatialindex.Storage;
 
 
-/** A simple in-memory storage relying on LinkedHashMap.
- * This is NOT synchronised.
+/** A simple in-memory storage relying on a ConcurrentHashMap,
+ * so that nodes may be put and read by several threads, as by parallel bulk inserts.
  *
  * @author crousson
  *
  */
 public class MemoryStorage implements Storage {
-    HashMap<NodeIdentifier, Node> map;
+    ConcurrentHashMap<NodeIdentifier, Node> map;
 
     public MemoryStorage(int capacity) {
-        this.map = new HashMap<NodeIdentifier, Node>(capacity);
+        this.map = new ConcurrentHashMap<NodeIdentifier, Node>(capacity);
     }
 
     public Node get(NodeIdentifier id) {
@@ -40,9 +40,7 @@ public class MemoryStorage implements Storage {
     }
 
     public void put(Node n) {
-        if (!map.containsKey(n.getIdentifier())) {
-            map.put(n.getIdentifier(), n);
-        }
+        map.putIfAbsent(n.getIdentifier(), n);
     }
 
     public void remove(NodeIdentifier id) {
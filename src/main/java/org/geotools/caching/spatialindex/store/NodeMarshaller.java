@@ -20,6 +20,9 @@ import org.geotools.caching.spatialindex.Node;
 import org.geotools.feature.IllegalAttributeException;
 
 
+/** Codec used by storages to encode nodes.
+ * Storages may encode and decode several nodes at once, so implementations must be thread-safe.
+ */
 public interface NodeMarshaller {
     public byte[] marshall(Node node) throws IOException;
 
@@ -0,0 +1,72 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.store;
+
+import java.nio.ByteBuffer;
+
+
+/** An in-memory storage keeping nodes encoded outside of the Java heap,
+ * so that large caches do not weigh on garbage collection.
+ * Memory is allocated as direct buffers, or slabs, split into slots of fixed size ;
+ * a node is written to as many slots as required, and nodes put again are rewritten in place,
+ * reusing their slots. Slots freed by removed nodes are reused before new slabs are allocated.
+ * Nodes are decoded on each get, with the given NodeMarshaller,
+ * or with Java serialization if none is given.
+ *
+ * Direct memory is limited by the -XX:MaxDirectMemorySize option of the JVM.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
+public class OffHeapStorage extends AbstractPagedStorage {
+    /**
+     * Default size of slabs, in bytes.
+     */
+    public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+    public OffHeapStorage(int slot_size) {
+        this(slot_size, Math.max(1, DEFAULT_SLAB_SIZE / slot_size), null);
+    }
+
+    /**
+     * @param slot_size in bytes
+     * @param slab_slots number of slots in each slab
+     * @param marshaller codec used to encode nodes, or <code>null</code> to use Java serialization
+     */
+    public OffHeapStorage(int slot_size, int slab_slots, NodeMarshaller marshaller) {
+        super(slot_size, slab_slots, marshaller);
+    }
+
+    /**
+     * @return size of direct memory allocated so far, in bytes
+     */
+    public synchronized long getAllocatedSize() {
+        return (long) segments.size() * segment_pages * page_size;
+    }
+
+    /**
+     * @return size of direct memory used by nodes, in bytes
+     */
+    public synchronized long getUsedSize() {
+        return (long) getUsedPages() * page_size;
+    }
+
+    /** Allocates a new slab of direct memory.
+     */
+    protected ByteBuffer allocate(int segment, int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+}
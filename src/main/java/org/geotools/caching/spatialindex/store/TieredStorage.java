@@ -0,0 +1,277 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.store;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.PersistentStorage;
+import org.geotools.caching.spatialindex.SpatialIndex;
+import org.geotools.caching.spatialindex.Storage;
+
+
+/** A storage in two tiers : a fast tier holding a bounded number of recently used nodes,
+ * typically a MemoryStorage or an OffHeapStorage, and a large tier, typically a DiskStorage.
+ * Least recently used nodes are demoted to the large tier rather than dropped,
+ * and promoted back to the fast tier when read again.
+ *
+ * Nodes promoted keep their copy in the large tier, so that demoting a node not modified since
+ * costs nothing, and demoting a modified node rewrites its copy in place.
+ * Copies in the large tier are never read while the node is in the fast tier.
+ * Tiers are read without holding this storage, and must then be safe for use by several threads.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
+public class TieredStorage implements PersistentStorage {
+    private Storage fast;
+    private Storage large;
+    private int capacity;
+
+    /**
+     * nodes in fast tier, in access order, and whether they have been modified since promoted
+     */
+    private LinkedHashMap<NodeIdentifier, Boolean> hot;
+    private long hits = 0;
+    private long promotions = 0;
+    private long demotions = 0;
+
+    /**
+     * number of changes to large tier, used to detect stale reads
+     */
+    private long modifications = 0;
+
+    /**
+     * @param fast tier
+     * @param large tier
+     * @param capacity max number of nodes in fast tier
+     */
+    public TieredStorage(Storage fast, Storage large, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive : " + capacity);
+        }
+
+        this.fast = fast;
+        this.large = large;
+        this.capacity = capacity;
+        this.hot = new LinkedHashMap<NodeIdentifier, Boolean>(16, 0.75f, true);
+    }
+
+    public Node get(NodeIdentifier id) {
+        while (true) {
+            boolean isHot;
+            long seen;
+
+            synchronized (this) {
+                isHot = (hot.get(id) != null);
+                seen = modifications;
+
+                if (isHot) {
+                    hits++;
+                }
+            }
+
+            // tiers may decode node, other threads can use this storage meanwhile
+            if (isHot) {
+                Node n = fast.get(id);
+
+                if (n != null) {
+                    return n;
+                }
+
+                // node was demoted or replaced meanwhile
+                continue;
+            }
+
+            Node n = large.get(id);
+
+            synchronized (this) {
+                if (hot.containsKey(id)) {
+                    // node was put, or promoted by another thread meanwhile
+                    continue;
+                }
+
+                if (seen == modifications) {
+                    if (n != null) {
+                        promotions++;
+                        fast.put(n);
+                        hot.put(id, Boolean.FALSE);
+                        demote();
+                    }
+
+                    return n;
+                }
+            }
+
+            // large tier was modified meanwhile, node read may be stale
+        }
+    }
+
+    public synchronized void put(Node n) {
+        NodeIdentifier id = n.getIdentifier();
+
+        if (hot.containsKey(id)) {
+            fast.remove(id); // some storages only put nodes not yet stored
+        }
+
+        fast.put(n);
+        hot.put(id, Boolean.TRUE);
+        demote();
+    }
+
+    /** Demotes least recently used nodes, while fast tier is over capacity.
+     */
+    void demote() {
+        for (Iterator<Map.Entry<NodeIdentifier, Boolean>> it = hot.entrySet().iterator();
+                hot.size() > capacity;) {
+            Map.Entry<NodeIdentifier, Boolean> eldest = it.next();
+            it.remove();
+
+            if (eldest.getValue().booleanValue()) {
+                large.put(fast.get(eldest.getKey()));
+                modifications++;
+            }
+
+            fast.remove(eldest.getKey());
+            demotions++;
+        }
+    }
+
+    public synchronized void remove(NodeIdentifier id) {
+        boolean wasHot = (hot.remove(id) != null);
+        modifications++;
+
+        if (wasHot) {
+            fast.remove(id);
+        }
+
+        try {
+            large.remove(id);
+        } catch (IllegalArgumentException iae) {
+            if (!wasHot) {
+                throw iae;
+            }
+
+            // node has never been demoted
+        }
+    }
+
+    public synchronized void clear() {
+        hot.clear();
+        modifications++;
+        fast.clear();
+        large.clear();
+    }
+
+    public void setParent(SpatialIndex index) {
+        fast.setParent(index);
+        large.setParent(index);
+    }
+
+    /** Writes nodes modified in fast tier to large tier. Nodes remain in fast tier.
+     */
+    public synchronized void flush() {
+        for (Iterator<Map.Entry<NodeIdentifier, Boolean>> it = hot.entrySet().iterator();
+                it.hasNext();) {
+            Map.Entry<NodeIdentifier, Boolean> next = it.next();
+
+            if (next.getValue().booleanValue()) {
+                large.put(fast.get(next.getKey()));
+                next.setValue(Boolean.FALSE);
+            }
+        }
+    }
+
+    /** Flushes fast tier, then checkpoints large tier, which then holds every node.
+     *
+     * @throws UnsupportedOperationException if large tier is not persistent
+     */
+    public synchronized void checkpoint(byte[] properties)
+        throws IOException {
+        if (!(large instanceof PersistentStorage)) {
+            throw new UnsupportedOperationException("Storage is not persistent : " + large);
+        }
+
+        flush();
+        ((PersistentStorage) large).checkpoint(properties);
+    }
+
+    public byte[] getProperties() {
+        if (large instanceof PersistentStorage) {
+            return ((PersistentStorage) large).getProperties();
+        } else {
+            return null;
+        }
+    }
+
+    /** Flushes fast tier, then closes tiers which are persistent.
+     */
+    public synchronized void close() throws IOException {
+        flush();
+
+        if (fast instanceof PersistentStorage) {
+            ((PersistentStorage) fast).close();
+        }
+
+        if (large instanceof PersistentStorage) {
+            ((PersistentStorage) large).close();
+        }
+    }
+
+    public Storage getFastTier() {
+        return fast;
+    }
+
+    public Storage getLargeTier() {
+        return large;
+    }
+
+    /**
+     * @return number of nodes read from fast tier
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of nodes read from large tier, and promoted to fast tier
+     */
+    public synchronized long getPromotions() {
+        return promotions;
+    }
+
+    /**
+     * @return number of nodes demoted from fast tier
+     */
+    public synchronized long getDemotions() {
+        return demotions;
+    }
+
+    /**
+     * @return number of nodes currently in fast tier
+     */
+    public synchronized int getHotCount() {
+        return hot.size();
+    }
+
+    public synchronized String toString() {
+        return "TieredStorage [hits = " + hits + " ; promotions = " + promotions
+        + " ; demotions = " + demotions + "] on " + fast + " and " + large;
+    }
+}
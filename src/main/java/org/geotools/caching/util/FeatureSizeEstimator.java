@@ -0,0 +1,77 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.util;
+
+import java.util.Date;
+import java.util.Iterator;
+import com.vividsolutions.jts.geom.Geometry;
+import org.opengis.feature.Attribute;
+import org.opengis.feature.simple.SimpleFeature;
+
+
+/** Estimates how many bytes of heap objects stored in the cache use.
+ * Estimates are rough, and assume a 64-bit JVM ;
+ * they are meant to weigh features against each other, so that a tile of large polygons
+ * does not count as much as a tile of points, not to measure actual memory usage.
+ *
+ * @author Christophe Rousson, SoC 2007, CRG-ULAVAL
+ *
+ */
+public class FeatureSizeEstimator {
+    static final int OBJECT = 16;
+    static final int REFERENCE = 8;
+    static final int COORDINATE = OBJECT + (3 * 8) + REFERENCE;
+    static final int GEOMETRY = 96;
+    static final int ATTRIBUTE = 32;
+    static final int FEATURE = 64;
+
+    /** Estimates size of an object, following features and their attributes.
+     *
+     * @param o
+     * @return estimated size in bytes, 0 if o is null
+     */
+    public static long estimate(Object o) {
+        if (o == null) {
+            return 0;
+        } else if (o instanceof SimpleFeature) {
+            return estimate((SimpleFeature) o);
+        } else if (o instanceof Geometry) {
+            return estimate((Geometry) o);
+        } else if (o instanceof String) {
+            return OBJECT + 24 + (2 * ((String) o).length());
+        } else if ((o instanceof Number) || (o instanceof Boolean) || (o instanceof Date)) {
+            return OBJECT + 8;
+        } else {
+            return OBJECT;
+        }
+    }
+
+    public static long estimate(SimpleFeature f) {
+        long size = FEATURE;
+
+        for (Iterator it = f.attributes().iterator(); it.hasNext();) {
+            Attribute att = (Attribute) it.next();
+            size += (ATTRIBUTE + estimate(att.getValue()));
+        }
+
+        return size;
+    }
+
+    public static long estimate(Geometry g) {
+        return (GEOMETRY * (long) Math.max(1, g.getNumGeometries()))
+            + (COORDINATE * (long) g.getNumPoints());
+    }
+}
@@ -21,9 +21,15 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
 import org.opengis.feature.Attribute;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -50,6 +56,28 @@ import org.geotools.feature.IllegalAttributeException;
  *
  * This implementation does not have the ambition of being robust.
  *
+ * In BINARY encoding, attributes are written according to the registered FeatureType :
+ * a tag is resolved once per attribute type from its binding,
+ * and values matching that binding are written without object headers.
+ *
+ * Header := int     : FeatureType hashCode,
+ *           Text    : FeatureType name,
+ *           Text    : Feature ID,
+ *           int     : number of attributes
+ * Text       := boolean : false if null, int : length, UTF-8 bytes
+ * Attribute  := byte : tag, or NULL if value is null,
+ *                      or OBJECT or FEATURE if value does not match binding
+ *               raw value : primitive, UTF-8 string with length prefix,
+ *                           int SRID and WKB geometry,
+ *                           or Object|Feature as in default encoding
+ *
+ * Geometries carrying user data are written as serialized objects, as WKB cannot hold it.
+ *
+ * Marshallers are not thread-safe, as they keep their own feature builder and WKB codecs :
+ * threads should use a marshaller each. Registered types may be shared though,
+ * by creating marshallers from a common one, so that features written by one thread
+ * can be read by another.
+ *
  * @task test with other FeatureType than DefaultFeatureType
  * @task add method marshall(Feature, ByteArrayOutputStream) and unmarshall(ByteArrayOutputStream), or create sub class.
  *
@@ -62,20 +90,162 @@ public class SimpleFeatureMarshaller {
      */
     public static final int FEATURE = -1;
     public static final int SIMPLEATTRIBUTE = 0;
-    static DefaultFeatureBuilder builder = new DefaultFeatureBuilder();
-    HashMap<TypeKey, SimpleFeatureType> types;
+
+    /**
+     * default encoding, where attribute values are written as serialized objects
+     */
+    public static final int SERIALIZED = 0;
+
+    /**
+     * schema-aware binary encoding
+     */
+    public static final int BINARY = 1;
+    static final byte NULL = 0;
+    static final byte OBJECT = 1;
+    static final byte FEATUREVALUE = 2;
+    static final byte BOOLEAN = 3;
+    static final byte BYTE = 4;
+    static final byte SHORT = 5;
+    static final byte INTEGER = 6;
+    static final byte LONG = 7;
+    static final byte FLOAT = 8;
+    static final byte DOUBLE = 9;
+    static final byte STRING = 10;
+    static final byte DATE = 11;
+    static final byte GEOMETRY = 12;
+    static final String CHARSET = "UTF-8";
+    DefaultFeatureBuilder builder = new DefaultFeatureBuilder();
+    ConcurrentHashMap<TypeKey, SimpleFeatureType> types;
+    ConcurrentHashMap<TypeKey, byte[]> tags;
+    int encoding;
+    WKBWriter wkbWriter = new WKBWriter();
+    WKBWriter wkbWriter3D = new WKBWriter(3);
+    WKBReader wkbReader = new WKBReader();
 
     /** Default constructor.
      */
     public SimpleFeatureMarshaller() {
-        types = new HashMap<TypeKey, SimpleFeatureType>();
+        this(SERIALIZED);
+    }
+
+    /**
+     * @param encoding either SERIALIZED or BINARY
+     */
+    public SimpleFeatureMarshaller(int encoding) {
+        if ((encoding != SERIALIZED) && (encoding != BINARY)) {
+            throw new IllegalArgumentException("Unknown encoding : " + encoding);
+        }
+
+        this.encoding = encoding;
+        types = new ConcurrentHashMap<TypeKey, SimpleFeatureType>();
+        tags = new ConcurrentHashMap<TypeKey, byte[]>();
+    }
+
+    /** Creates a marshaller using the same encoding as the given one, and sharing its types :
+     * types registered with either marshaller are known to both.
+     *
+     * @param registry
+     */
+    public SimpleFeatureMarshaller(SimpleFeatureMarshaller registry) {
+        this.encoding = registry.encoding;
+        this.types = registry.types;
+        this.tags = registry.tags;
+    }
+
+    public int getEncoding() {
+        return encoding;
     }
 
     public void registerType(SimpleFeatureType type) {
         TypeKey key = new TypeKey(type);
 
         if (!types.containsKey(key)) {
-            types.put(key, type);
+            // tags first, as other threads use them once type is registered
+            tags.putIfAbsent(key, resolveTags(type));
+            types.putIfAbsent(key, type);
+        }
+    }
+
+    /** Computes the tag used to encode each attribute of type in BINARY encoding.
+     *
+     * @param type
+     * @return one tag per attribute
+     */
+    protected byte[] resolveTags(SimpleFeatureType type) {
+        byte[] t = new byte[type.getAttributeCount()];
+
+        for (int i = 0; i < t.length; i++) {
+            t[i] = tagOf(type.getType(i).getBinding());
+        }
+
+        return t;
+    }
+
+    static byte tagOf(Class binding) {
+        if (binding == null) {
+            return OBJECT;
+        } else if (Geometry.class.isAssignableFrom(binding)) {
+            return GEOMETRY;
+        } else if (binding == String.class) {
+            return STRING;
+        } else if (binding == Integer.class) {
+            return INTEGER;
+        } else if (binding == Double.class) {
+            return DOUBLE;
+        } else if (binding == Long.class) {
+            return LONG;
+        } else if (binding == Float.class) {
+            return FLOAT;
+        } else if (binding == Short.class) {
+            return SHORT;
+        } else if (binding == Byte.class) {
+            return BYTE;
+        } else if (binding == Boolean.class) {
+            return BOOLEAN;
+        } else if (binding == Date.class) {
+            return DATE;
+        } else {
+            return OBJECT;
+        }
+    }
+
+    /** Tests whether value can be written using tag,
+     * ie value is exactly of the class tag has been resolved from.
+     */
+    static boolean matches(byte tag, Object o) {
+        switch (tag) {
+        case GEOMETRY:
+            return (o instanceof Geometry) && (((Geometry) o).getUserData() == null);
+
+        case STRING:
+            return o instanceof String;
+
+        case INTEGER:
+            return o instanceof Integer;
+
+        case DOUBLE:
+            return o instanceof Double;
+
+        case LONG:
+            return o instanceof Long;
+
+        case FLOAT:
+            return o instanceof Float;
+
+        case SHORT:
+            return o instanceof Short;
+
+        case BYTE:
+            return o instanceof Byte;
+
+        case BOOLEAN:
+            return o instanceof Boolean;
+
+        case DATE:
+            return (o != null) && (o.getClass() == Date.class);
+
+        default:
+            return false;
         }
     }
 
@@ -101,6 +271,13 @@ public class SimpleFeatureMarshaller {
         throws IOException {
         SimpleFeatureType type = (SimpleFeatureType) f.getType();
         registerType(type);
+
+        if (encoding == BINARY) {
+            marshallBinary(f, type, s);
+
+            return;
+        }
+
         s.writeInt(type.hashCode());
         s.writeObject(type.getName().getURI());
         s.writeObject(f.getID());
@@ -114,6 +291,164 @@ public class SimpleFeatureMarshaller {
         }
     }
 
+    /** Marshall a feature into a stream, using BINARY encoding.
+     *
+     * @param f the Feature to marshall
+     * @param type the registered type of f
+     * @param s the stream to write to
+     * @throws IOException
+     */
+    protected void marshallBinary(SimpleFeature f, SimpleFeatureType type, ObjectOutput s)
+        throws IOException {
+        byte[] t = tags.get(new TypeKey(type));
+        s.writeInt(type.hashCode());
+        writeText(type.getName().getURI(), s);
+        writeText(f.getID(), s);
+
+        int natt = f.attributes().size();
+        s.writeInt(natt);
+
+        int i = 0;
+
+        for (Iterator it = f.attributes().iterator(); it.hasNext(); i++) {
+            Attribute att = (Attribute) it.next();
+            marshallBinaryAttribute((i < t.length) ? t[i] : OBJECT, att.getValue(), s);
+        }
+    }
+
+    /** Marshall an attribute value into a stream, using BINARY encoding.
+     *
+     * @param tag resolved for attribute type
+     * @param o attribute value
+     * @param s the stream to write to
+     * @throws IOException
+     */
+    protected void marshallBinaryAttribute(byte tag, Object o, ObjectOutput s)
+        throws IOException {
+        if (o == null) {
+            s.writeByte(NULL);
+
+            return;
+        }
+
+        if (!matches(tag, o)) {
+            if (o instanceof SimpleFeature) {
+                s.writeByte(FEATUREVALUE);
+                marshall((SimpleFeature) o, s);
+            } else if (o instanceof Collection) {
+                throw new IllegalArgumentException(
+                    "Got instance of SimpleFeature with complex attributes.");
+            } else {
+                s.writeByte(OBJECT);
+                s.writeObject(o);
+            }
+
+            return;
+        }
+
+        s.writeByte(tag);
+
+        switch (tag) {
+        case GEOMETRY:
+
+            Geometry g = (Geometry) o;
+            Coordinate c = g.getCoordinate();
+            byte[] wkb = ((c != null) && !Double.isNaN(c.z)) ? wkbWriter3D.write(g)
+                                                              : wkbWriter.write(g);
+            s.writeInt(g.getSRID());
+            s.writeInt(wkb.length);
+            s.write(wkb);
+
+            break;
+
+        case STRING:
+
+            byte[] utf = ((String) o).getBytes(CHARSET);
+            s.writeInt(utf.length);
+            s.write(utf);
+
+            break;
+
+        case INTEGER:
+            s.writeInt(((Integer) o).intValue());
+
+            break;
+
+        case DOUBLE:
+            s.writeDouble(((Double) o).doubleValue());
+
+            break;
+
+        case LONG:
+            s.writeLong(((Long) o).longValue());
+
+            break;
+
+        case FLOAT:
+            s.writeFloat(((Float) o).floatValue());
+
+            break;
+
+        case SHORT:
+            s.writeShort(((Short) o).shortValue());
+
+            break;
+
+        case BYTE:
+            s.writeByte(((Byte) o).byteValue());
+
+            break;
+
+        case BOOLEAN:
+            s.writeBoolean(((Boolean) o).booleanValue());
+
+            break;
+
+        case DATE:
+            s.writeLong(((Date) o).getTime());
+
+            break;
+        }
+    }
+
+    /** Writes a possibly null string, of any length, as a null flag
+     * followed by its length-prefixed UTF-8 form.
+     *
+     * @param text
+     * @param s the stream to write to
+     * @throws IOException
+     */
+    protected static void writeText(String text, ObjectOutput s)
+        throws IOException {
+        if (text == null) {
+            s.writeBoolean(false);
+
+            return;
+        }
+
+        byte[] utf = text.getBytes(CHARSET);
+        s.writeBoolean(true);
+        s.writeInt(utf.length);
+        s.write(utf);
+    }
+
+    /** Inverse operation of writeText.
+     *
+     * @param s the stream to read from
+     * @return the string read, or null
+     * @throws IOException
+     */
+    protected static String readText(ObjectInput s) throws IOException {
+        if (!s.readBoolean()) {
+            return null;
+        }
+
+        byte[] utf = new byte[s.readInt()];
+        s.readFully(utf);
+
+        return new String(utf, CHARSET);
+    }
+
     /** Marshall an attribute into a stream.
      *
      * @task test object is instance of Serializable
@@ -154,7 +489,7 @@ public class SimpleFeatureMarshaller {
     public SimpleFeature unmarshall(ObjectInput s)
         throws IOException, ClassNotFoundException, IllegalAttributeException {
         int typeHash = s.readInt();
-        String typeName = (String) s.readObject();
+        String typeName = (encoding == BINARY) ? readText(s) : (String) s.readObject();
         SimpleFeatureType type = typeLookUp(typeHash, typeName);
 
         if (type != null) {
@@ -175,6 +510,10 @@ public class SimpleFeatureMarshaller {
      */
     protected SimpleFeature unmarshall(ObjectInput s, SimpleFeatureType type)
         throws IOException, ClassNotFoundException, IllegalAttributeException {
+        if (encoding == BINARY) {
+            return unmarshallBinary(s, type);
+        }
+
         String fid = (String) s.readObject();
         int natt = s.readInt();
 
@@ -191,6 +530,113 @@ public class SimpleFeatureMarshaller {
         return builder.feature(fid);
     }
 
+    /** Read a feature from a stream, using BINARY encoding.
+     *
+     * @param s the stream to read from
+     * @param the type of the feature to unmarshall
+     * @return the unmarshalled feature
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws IllegalAttributeException
+     */
+    protected SimpleFeature unmarshallBinary(ObjectInput s, SimpleFeatureType type)
+        throws IOException, ClassNotFoundException, IllegalAttributeException {
+        String fid = readText(s);
+        int natt = s.readInt();
+
+        if (!(natt == type.getAttributeCount())) {
+            throw new IOException("Schema error");
+        }
+
+        Object[] values = new Object[natt];
+
+        for (int i = 0; i < natt; i++) {
+            values[i] = unmarshallBinaryAttribute(s);
+        }
+
+        // nested features use the builder too, so set type once all values are read
+        builder.setType(type);
+
+        for (int i = 0; i < natt; i++) {
+            builder.add(values[i]);
+        }
+
+        return builder.feature(fid);
+    }
+
+    /** Read an attribute value from a stream, using BINARY encoding.
+     *
+     * @param s the stream to read from
+     * @return attribute value
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws IllegalAttributeException
+     */
+    protected Object unmarshallBinaryAttribute(ObjectInput s)
+        throws IOException, ClassNotFoundException, IllegalAttributeException {
+        byte tag = s.readByte();
+
+        switch (tag) {
+        case NULL:
+            return null;
+
+        case OBJECT:
+            return s.readObject();
+
+        case FEATUREVALUE:
+            return unmarshall(s);
+
+        case GEOMETRY:
+
+            int srid = s.readInt();
+            byte[] wkb = new byte[s.readInt()];
+            s.readFully(wkb);
+
+            try {
+                Geometry g = wkbReader.read(wkb);
+                g.setSRID(srid);
+
+                return g;
+            } catch (ParseException e) {
+                throw (IOException) new IOException("Invalid WKB geometry").initCause(e);
+            }
+
+        case STRING:
+
+            byte[] utf = new byte[s.readInt()];
+            s.readFully(utf);
+
+            return new String(utf, CHARSET);
+
+        case INTEGER:
+            return new Integer(s.readInt());
+
+        case DOUBLE:
+            return new Double(s.readDouble());
+
+        case LONG:
+            return new Long(s.readLong());
+
+        case FLOAT:
+            return new Float(s.readFloat());
+
+        case SHORT:
+            return new Short(s.readShort());
+
+        case BYTE:
+            return new Byte(s.readByte());
+
+        case BOOLEAN:
+            return Boolean.valueOf(s.readBoolean());
+
+        case DATE:
+            return new Date(s.readLong());
+
+        default:
+            throw new IOException("Unknown attribute tag : " + tag);
+        }
+    }
+
     /** Read attribute values from a stream.
      *
      * @param s the stream to read from
@@ -0,0 +1,147 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.RegionNodeIdentifier;
+
+
+public class LRUEvictionPolicyTest extends TestCase {
+    /** Records evicted nodes. Nodes marked as stale are not part of the tree anymore.
+     */
+    static class RecordingTree implements EvictableTree {
+        List<NodeIdentifier> evicted = new ArrayList<NodeIdentifier>();
+        Set<NodeIdentifier> stale = new HashSet<NodeIdentifier>();
+
+        public boolean evict(NodeIdentifier node) {
+            if (stale.contains(node)) {
+                return false;
+            }
+
+            evicted.add(node);
+
+            return true;
+        }
+    }
+
+    RecordingTree tree;
+    LRUEvictionPolicy policy;
+    NodeIdentifier id1;
+    NodeIdentifier id2;
+    NodeIdentifier id3;
+
+    public static Test suite() {
+        return new TestSuite(LRUEvictionPolicyTest.class);
+    }
+
+    static NodeIdentifier id(int i) {
+        return new RegionNodeIdentifier(new Region(new double[] { i, 0 },
+                new double[] { i + 1, 1 }));
+    }
+
+    protected void setUp() {
+        tree = new RecordingTree();
+        policy = new LRUEvictionPolicy(tree);
+        id1 = id(1);
+        id2 = id(2);
+        id3 = id(3);
+    }
+
+    public void testAccessOrder() {
+        policy.access(id1);
+        policy.access(id2);
+        policy.access(id3);
+        assertEquals(Arrays.asList(new NodeIdentifier[] { id1, id2, id3 }),
+            policy.getAccessOrder());
+
+        assertTrue(policy.evict());
+        assertTrue(policy.evict());
+        assertTrue(policy.evict());
+        assertEquals(Arrays.asList(new NodeIdentifier[] { id1, id2, id3 }), tree.evicted);
+        assertTrue(policy.getAccessOrder().isEmpty());
+    }
+
+    public void testReaccessMovesToTail() {
+        policy.access(id1);
+        policy.access(id2);
+        policy.access(id3);
+        policy.access(id1);
+        assertEquals(Arrays.asList(new NodeIdentifier[] { id2, id3, id1 }),
+            policy.getAccessOrder());
+
+        // accessing the most recently accessed node does not change order
+        policy.access(id1);
+        assertEquals(Arrays.asList(new NodeIdentifier[] { id2, id3, id1 }),
+            policy.getAccessOrder());
+
+        assertTrue(policy.evict());
+        assertEquals(id2, tree.evicted.get(0));
+    }
+
+    public void testEvictEmpty() {
+        assertFalse(policy.evict());
+        assertTrue(tree.evicted.isEmpty());
+
+        policy.access(id1);
+        assertTrue(policy.evict());
+        assertFalse(policy.evict());
+        assertEquals(1, tree.evicted.size());
+    }
+
+    public void testEvictSkipsStaleNodes() {
+        policy.access(id1);
+        policy.access(id2);
+        tree.stale.add(id1);
+
+        assertTrue(policy.evict());
+        assertEquals(Arrays.asList(new NodeIdentifier[] { id2 }), tree.evicted);
+        assertTrue(policy.getAccessOrder().isEmpty());
+
+        tree.stale.add(id3);
+        policy.access(id3);
+        assertFalse(policy.evict());
+    }
+
+    public void testReaddEvicted() {
+        policy.access(id1);
+        policy.access(id2);
+        assertTrue(policy.evict());
+        assertEquals(id1, tree.evicted.get(0));
+        assertEquals(Arrays.asList(new NodeIdentifier[] { id2 }), policy.getAccessOrder());
+
+        // evicted node is accessed again, when reloaded from source
+        policy.access(id1);
+        policy.access(id3);
+        assertEquals(Arrays.asList(new NodeIdentifier[] { id2, id1, id3 }),
+            policy.getAccessOrder());
+
+        // and evicting it again unlinks it once more
+        policy.access(id2);
+        assertTrue(policy.evict());
+        assertTrue(policy.evict());
+        assertEquals(Arrays.asList(new NodeIdentifier[] { id1, id1, id3 }), tree.evicted);
+        assertEquals(Arrays.asList(new NodeIdentifier[] { id2 }), policy.getAccessOrder());
+    }
+}
@@ -29,14 +29,31 @@ public class DiskGridFeatureCacheTest extends GridFeatureCacheTest {
         return new TestSuite(DiskGridFeatureCacheTest.class);
     }
 
+    File file;
+    DiskStorage storage;
+
     @Override
     protected AbstractFeatureCache createInstance(int capacity)
         throws FeatureCacheException, IOException {
-        DiskStorage storage = new DiskStorage(File.createTempFile("cache", ".tmp"), 1000);
+        file = File.createTempFile("cache", ".tmp");
+        storage = new DiskStorage(file, 1000);
         this.cache = new GridFeatureCache(ds.getFeatureSource(dataset.getSchema().getTypeName()),
                 100, capacity, storage);
         storage.setParent(this.cache.tracker);
 
         return this.cache;
     }
+
+    public void testWarmStart() throws IOException, FeatureCacheException {
+        cache.get(unitsquare);
+        assertTrue(cache.match(unitsquare).isEmpty());
+        cache.checkpoint();
+        storage.close();
+
+        storage = new DiskStorage(file, 1000);
+        this.cache = new GridFeatureCache(ds.getFeatureSource(dataset.getSchema().getTypeName()),
+                100, numdata, storage);
+        assertTrue(cache.match(unitsquare).isEmpty());
+        assertEquals(dataset.size(), cache.peek(unitsquare).size());
+    }
 }
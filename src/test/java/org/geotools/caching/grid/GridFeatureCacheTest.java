@@ -18,10 +18,22 @@ package org.geotools.caching.grid;
 import junit.framework.Test;
 import junit.framework.TestSuite;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.vividsolutions.jts.geom.Coordinate;
 import org.opengis.filter.Filter;
+import org.opengis.filter.spatial.BBOX;
 import org.geotools.caching.AbstractFeatureCache;
 import org.geotools.caching.AbstractFeatureCacheTest;
 import org.geotools.caching.CacheOversizedException;
@@ -29,7 +41,12 @@ import org.geotools.caching.FeatureCacheException;
 import org.geotools.caching.FeatureCollectingVisitor;
 import org.geotools.caching.spatialindex.store.MemoryStorage;
 import org.geotools.caching.util.Generator;
+import org.geotools.data.FeatureSource;
 import org.geotools.data.FeatureStore;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.Feature;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
 
 
 public class GridFeatureCacheTest extends AbstractFeatureCacheTest {
@@ -77,6 +94,229 @@ public class GridFeatureCacheTest extends AbstractFeatureCacheTest {
         }
     }
 
+    public void testEvictDataAtRoot() throws Exception {
+        createInstance(10);
+
+        // features covering more than MAX_INSERTION tiles are stored at root node
+        FeatureCollection big = new DefaultFeatureCollection("big", Generator.type);
+
+        for (int i = 0; i < 10; i++) {
+            big.add(Generator.type.create(new Object[] {
+                        Generator.createRectangle(0.05, 0.05, 0.95, 0.95), "big " + i
+                    }));
+        }
+
+        cache.put(big);
+        assertEquals(10, cache.tracker.getStatistics().getNumberOfData());
+
+        FeatureCollection small = new DefaultFeatureCollection("small", Generator.type);
+        Iterator it = dataset.iterator();
+
+        for (int i = 0; i < 5; i++) {
+            small.add((Feature) it.next());
+        }
+
+        dataset.close(it);
+        // root node must be evicted to make room, and put must return
+        cache.put(small);
+        assertTrue(cache.tracker.getEvictions() > 0);
+
+        FeatureCollectingVisitor v = new FeatureCollectingVisitor(dataset.getFeatureType());
+        cache.tracker.intersectionQuery(AbstractFeatureCache.convert(unitsquare), v);
+        assertEquals(5, v.getCollection().size());
+    }
+
+    public void testByteCapacity() throws IOException, FeatureCacheException {
+        super.cache = createInstance(numdata * 10);
+
+        long bytes = cache.estimateSize(dataset);
+        cache.setByteCapacity(bytes / 2);
+
+        for (int i = 0; i < 11; i++) {
+            for (int j = 0; j < 11; j++) {
+                Filter f = Generator.createBboxFilter(new Coordinate(i * 0.1, j * 0.1), 0.1, 0.1);
+                Collection c = cache.getFeatures(f);
+                Collection control = ds.getFeatureSource(dataset.getSchema().getTypeName())
+                                       .getFeatures(f);
+                assertEquals(control.size(), c.size());
+            }
+        }
+
+        assertTrue(cache.tracker.getEvictions() > 0);
+    }
+
+    public void testConcurrentGetFeatures() throws InterruptedException {
+        int threads = 4;
+        final List<Throwable> errors = new Vector<Throwable>();
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            workers[t] = new Thread() {
+                        public void run() {
+                            try {
+                                for (int i = 0; i < numfilters; i++) {
+                                    Filter f = filterset.get((i + (offset * 7)) % numfilters);
+                                    Collection c = cache.getFeatures(f);
+                                    Collection control = ds.getFeatureSource(dataset.getSchema()
+                                                                                    .getTypeName())
+                                                           .getFeatures(f);
+                                    assertEquals(control.size(), c.size());
+                                }
+                            } catch (Throwable e) {
+                                errors.add(e);
+                            }
+                        }
+                    };
+            workers[t].start();
+        }
+
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+        }
+
+        if (!errors.isEmpty()) {
+            fail(errors.get(0).toString());
+        }
+    }
+
+    /** Source delegating to the test data store, which blocks queries until released,
+     * and counts them.
+     */
+    static class BlockingSource implements InvocationHandler {
+        final FeatureSource source;
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger queries = new AtomicInteger();
+        volatile boolean failing = false;
+        volatile Filter last = null;
+
+        BlockingSource(FeatureSource source) {
+            this.source = source;
+        }
+
+        FeatureSource proxy() {
+            return (FeatureSource) Proxy.newProxyInstance(FeatureSource.class.getClassLoader(),
+                new Class[] { FeatureSource.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+            if (method.getName().equals("getFeatures") && (args != null) && (args.length == 1)
+                    && (args[0] instanceof Filter)) {
+                queries.incrementAndGet();
+                last = (Filter) args[0];
+                entered.countDown();
+                release.await();
+
+                if (failing) {
+                    throw new IOException("Source failure");
+                }
+            }
+
+            try {
+                return method.invoke(source, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /** Runs getFeatures(f) on cache in a new thread, storing the result or the failure.
+     */
+    static Thread query(final GridFeatureCache cache, final Filter f, final Object[] result) {
+        Thread t = new Thread() {
+                public void run() {
+                    try {
+                        result[0] = cache.getFeatures(f);
+                    } catch (Throwable e) {
+                        result[0] = e;
+                    }
+                }
+            };
+        t.start();
+
+        return t;
+    }
+
+    /** Waits until t blocks, ie until it waits for a source query.
+     */
+    static void awaitBlocked(Thread t) throws InterruptedException {
+        for (int i = 0; (i < 500) && (t.getState() != Thread.State.WAITING); i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(Thread.State.WAITING, t.getState());
+    }
+
+    GridFeatureCache createBlockingInstance(BlockingSource source)
+        throws FeatureCacheException {
+        return new GridFeatureCache(source.proxy(), 100, 1000, new MemoryStorage(100));
+    }
+
+    public void testConcurrentMissesQuerySourceOnce() throws Exception {
+        BlockingSource source = new BlockingSource(ds.getFeatureSource(
+                    dataset.getSchema().getTypeName()));
+        GridFeatureCache blocking = createBlockingInstance(source);
+        Filter outer = Generator.createBboxFilter(new Coordinate(0.5, 0.5), 0.6, 0.6);
+        Filter inner = Generator.createBboxFilter(new Coordinate(0.4, 0.4), 0.2, 0.2);
+        Object[] first = new Object[1];
+        Object[] second = new Object[1];
+
+        Thread t1 = query(blocking, outer, first);
+        source.entered.await();
+
+        // second query misses tiles being loaded by the first one, and joins it
+        Thread t2 = query(blocking, inner, second);
+        awaitBlocked(t2);
+        source.release.countDown();
+        t1.join();
+        t2.join();
+
+        assertEquals(1, source.queries.get());
+        assertEquals(dataset.subCollection(outer).size(), ((FeatureCollection) first[0]).size());
+        assertEquals(dataset.subCollection(inner).size(), ((FeatureCollection) second[0]).size());
+    }
+
+    public void testFullMissQueriesEnvelope() throws Exception {
+        BlockingSource source = new BlockingSource(ds.getFeatureSource(
+                    dataset.getSchema().getTypeName()));
+        source.release.countDown();
+
+        GridFeatureCache blocking = createBlockingInstance(source);
+        Filter f = Generator.createBboxFilter(new Coordinate(0.5, 0.5), 0.6, 0.6);
+        Collection c = blocking.getFeatures(f);
+
+        // nothing in cache : source is queried once, for the envelope of the query
+        assertEquals(1, source.queries.get());
+        assertTrue(source.last instanceof BBOX);
+        assertEquals(dataset.subCollection(f).size(), c.size());
+    }
+
+    public void testSourceFailureReachesJoinedQuery() throws Exception {
+        BlockingSource source = new BlockingSource(ds.getFeatureSource(
+                    dataset.getSchema().getTypeName()));
+        GridFeatureCache blocking = createBlockingInstance(source);
+        Filter outer = Generator.createBboxFilter(new Coordinate(0.5, 0.5), 0.6, 0.6);
+        Filter inner = Generator.createBboxFilter(new Coordinate(0.4, 0.4), 0.2, 0.2);
+        Object[] first = new Object[1];
+        Object[] second = new Object[1];
+
+        Thread t1 = query(blocking, outer, first);
+        source.entered.await();
+
+        Thread t2 = query(blocking, inner, second);
+        awaitBlocked(t2);
+        source.failing = true;
+        source.release.countDown();
+        t1.join();
+        t2.join();
+
+        assertEquals(1, source.queries.get());
+        assertTrue(first[0] instanceof IOException);
+        assertTrue(second[0] instanceof IOException);
+    }
+
     @Override
     public void testPut() throws CacheOversizedException {
         cache.put(dataset);
@@ -86,4 +326,67 @@ public class GridFeatureCacheTest extends AbstractFeatureCacheTest {
 
         assertEquals(dataset.size(), v.getCollection().size());
     }
+
+    /** Put should read collection once, as sources may read features again on each pass.
+     */
+    public void testPutReadsCollectionOnce() throws CacheOversizedException {
+        final int[] passes = new int[1];
+        DefaultFeatureCollection counting = new DefaultFeatureCollection("counting",
+                Generator.type) {
+                public FeatureIterator features() {
+                    passes[0]++;
+
+                    return super.features();
+                }
+
+                public int size() {
+                    passes[0]++;
+
+                    return super.size();
+                }
+            };
+
+        counting.addAll(dataset);
+        passes[0] = 0;
+        cache.setByteCapacity(1L << 40);
+        cache.put(counting);
+        assertEquals(1, passes[0]);
+
+        FeatureCollectingVisitor v = new FeatureCollectingVisitor(dataset.getFeatureType());
+        cache.tracker.intersectionQuery(AbstractFeatureCache.convert(unitsquare), v);
+        assertEquals(dataset.size(), v.getCollection().size());
+    }
+
+    public void testParallelPut() throws CacheOversizedException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            cache.setExecutor(executor);
+            cache.put(dataset);
+        } finally {
+            executor.shutdown();
+        }
+
+        FeatureCollectingVisitor v = new FeatureCollectingVisitor(dataset.getFeatureType());
+        cache.tracker.intersectionQuery(AbstractFeatureCache.convert(unitsquare), v);
+
+        assertEquals(dataset.size(), v.getCollection().size());
+    }
+
+    public void testPeekIsFilteredView() throws CacheOversizedException {
+        cache.put(dataset);
+
+        Filter f = Generator.createBboxFilter(new Coordinate(0.25, 0.35), 0.3, 0.2);
+        FeatureCollection fc = cache.peek(unitsquare).subCollection(f);
+        assertEquals(dataset.subCollection(f).size(), fc.size());
+
+        // features stored in several tiles are returned once
+        HashSet<String> fids = new HashSet<String>();
+
+        for (Iterator it = fc.iterator(); it.hasNext();) {
+            assertTrue(fids.add(((Feature) it.next()).getID()));
+        }
+
+        assertEquals(fc.size(), fids.size());
+    }
 }
@@ -0,0 +1,146 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.grid;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import org.geotools.caching.spatialindex.Data;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.Visitor;
+import org.geotools.caching.spatialindex.grid.GridData;
+import org.geotools.caching.spatialindex.grid.GridNode;
+import org.geotools.caching.spatialindex.grid.GridNodeMarshaller;
+import org.geotools.caching.spatialindex.store.DiskStorage;
+import org.geotools.caching.spatialindex.store.MemoryStorage;
+
+
+public class GridTrackerTest extends TestCase {
+    MemoryStorage storage;
+    GridTracker tracker;
+
+    public static Test suite() {
+        return new TestSuite(GridTrackerTest.class);
+    }
+
+    protected void setUp() {
+        storage = new MemoryStorage(100);
+        tracker = new GridTracker(new Region(new double[] { 0, 0 }, new double[] { 1, 1 }), 100,
+                storage);
+    }
+
+    /** Queries hold shared locks only, so they should not write the replacement of a lost node,
+     * which is written once the grid is locked exclusively.
+     */
+    public void testLostNodeReplacedExclusively() {
+        Region whole = new Region(new double[] { 0, 0 }, new double[] { 1, 1 });
+        NodeIdentifier id = tracker.searchTiles(new Region(new double[] { 0.05, 0.05 },
+                    new double[] { 0.05, 0.05 })).get(0);
+        storage.remove(id);
+
+        for (Iterator<Data> it = tracker.dataIterator(whole); it.hasNext();) {
+            it.next();
+        }
+
+        assertNull(storage.get(id));
+        assertTrue(tracker.lost);
+
+        tracker.recount();
+
+        Node replacement = storage.get(id);
+        assertNotNull(replacement);
+        assertFalse(replacement.getIdentifier().isValid());
+        assertFalse(tracker.lost);
+    }
+
+    static List<Integer> query(GridTracker tracker, Region query) {
+        final List<Integer> ids = new ArrayList<Integer>();
+        tracker.intersectionQuery(query,
+            new Visitor() {
+                public void visitData(Data d) {
+                    ids.add((Integer) d.getData());
+                }
+
+                public void visitNode(Node n) {
+                }
+
+                public boolean isDataVisitor() {
+                    return true;
+                }
+            });
+        Collections.sort(ids);
+
+        return ids;
+    }
+
+    /** Parallel bulk insert into a disk storage, encoding nodes concurrently,
+     * should fill tiles as sequential inserts do.
+     */
+    public void testParallelBulkInsertOnDisk() throws IOException {
+        Region whole = new Region(new double[] { 0, 0 }, new double[] { 1, 1 });
+        DiskStorage disk = new DiskStorage(File.createTempFile("cache", ".tmp"), 1000,
+                new GridNodeMarshaller());
+        disk.setCompressionLevel(Deflater.BEST_SPEED);
+
+        GridTracker sequential = new GridTracker(whole, 400, new MemoryStorage(1000), 4);
+        GridTracker parallel = new GridTracker(whole, 400, disk, 4);
+        Random rand = new Random(42);
+        List<GridData> batch = new ArrayList<GridData>();
+
+        for (int i = 0; i < 5000; i++) {
+            double x = rand.nextDouble() * 0.95;
+            double y = rand.nextDouble() * 0.95;
+            double w = rand.nextDouble() * 0.05;
+            Region shape = new Region(new double[] { x, y }, new double[] { x + w, y + w });
+            sequential.insertData(new Integer(i), shape, i);
+            batch.add(new GridData(i, shape, new Integer(i)));
+        }
+
+        parallel.setExecutor(Executors.newFixedThreadPool(4));
+
+        try {
+            parallel.insertData(batch);
+        } finally {
+            parallel.getExecutor().shutdown();
+        }
+
+        List<NodeIdentifier> tiles = sequential.searchTiles(whole);
+        List<NodeIdentifier> parallelTiles = parallel.searchTiles(whole);
+        assertEquals(tiles, parallelTiles);
+
+        for (int i = 0; i < tiles.size(); i++) {
+            NodeIdentifier tile = tiles.get(i);
+            assertEquals(((GridNode) sequential.readNode(tile)).getDataCount(),
+                ((GridNode) parallel.readNode(parallelTiles.get(i))).getDataCount());
+            assertEquals(query(sequential, (Region) tile.getShape()),
+                query(parallel, (Region) tile.getShape()));
+        }
+
+        assertEquals(5000, query(parallel, whole).size());
+        disk.close();
+    }
+}
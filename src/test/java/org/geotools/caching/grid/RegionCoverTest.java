@@ -0,0 +1,134 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.grid;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.geotools.caching.spatialindex.Region;
+
+
+public class RegionCoverTest extends TestCase {
+    public static Test suite() {
+        return new TestSuite(RegionCoverTest.class);
+    }
+
+    static Region tile(int i, int j) {
+        return new Region(new double[] { i * 0.1, j * 0.1 },
+            new double[] { (i + 1) * 0.1, (j + 1) * 0.1 });
+    }
+
+    static double area(List<Region> regions) {
+        double area = 0;
+
+        for (Iterator<Region> it = regions.iterator(); it.hasNext();) {
+            area += it.next().getArea();
+        }
+
+        return area;
+    }
+
+    static void assertCovers(List<Region> cover, List<Region> tiles) {
+        for (Iterator<Region> it = tiles.iterator(); it.hasNext();) {
+            Region tile = it.next();
+            boolean covered = false;
+
+            for (Iterator<Region> jt = cover.iterator(); jt.hasNext();) {
+                if (jt.next().contains(tile)) {
+                    covered = true;
+                }
+            }
+
+            assertTrue(covered);
+        }
+    }
+
+    public void testExactCover() {
+        List<Region> tiles = new ArrayList<Region>();
+
+        // L-shaped set of tiles
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 5; j++) {
+                if ((i < 2) || (j < 2)) {
+                    tiles.add(tile(i, j));
+                }
+            }
+        }
+
+        List<Region> cover = RegionCover.cover(tiles, 10, 0);
+        assertEquals(2, cover.size());
+        assertCovers(cover, tiles);
+        assertEquals(area(tiles), area(cover), 1e-9);
+    }
+
+    public void testMaxRegions() {
+        List<Region> tiles = new ArrayList<Region>();
+
+        // checkerboard
+        for (int i = 0; i < 6; i++) {
+            for (int j = 0; j < 6; j++) {
+                if (((i + j) % 2) == 0) {
+                    tiles.add(tile(i, j));
+                }
+            }
+        }
+
+        List<Region> cover = RegionCover.cover(tiles, 3, 0);
+        assertTrue(cover.size() <= 3);
+        assertCovers(cover, tiles);
+
+        cover = RegionCover.cover(tiles, 100, 0);
+        assertEquals(tiles.size(), cover.size());
+    }
+
+    public void testOverfetch() {
+        List<Region> tiles = new ArrayList<Region>();
+        tiles.add(tile(0, 0));
+        tiles.add(tile(2, 0));
+
+        assertEquals(2, RegionCover.cover(tiles, 10, 0.4).size());
+
+        List<Region> cover = RegionCover.cover(tiles, 10, 0.5);
+        assertEquals(1, cover.size());
+        assertCovers(cover, tiles);
+    }
+
+    public void testLargeScatteredInput() {
+        List<Region> tiles = new ArrayList<Region>();
+
+        // checkerboard, which no tiles can be merged exactly
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                if (((i + j) % 2) == 0) {
+                    tiles.add(tile(i, j));
+                }
+            }
+        }
+
+        List<Region> cover = RegionCover.cover(tiles, 10, 0);
+        assertTrue(cover.size() <= 10);
+        assertCovers(cover, tiles);
+
+        for (int i = 0; i < cover.size(); i++) {
+            for (int j = i + 1; j < cover.size(); j++) {
+                assertFalse(RegionCover.overlaps(cover.get(i), cover.get(j)));
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@ package org.geotools.caching.spatialindex;
 
 import junit.framework.TestCase;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
@@ -99,6 +100,24 @@ public abstract class AbstractSpatialIndexTest extends TestCase {
         assertEquals(comp_result, v.harvest);
     }
 
+    public void testNestedQueries() {
+        final Region query = new Region(new double[] { .25, .25 }, new double[] { .75, .75 });
+        final HarvestingVisitor inner = new HarvestingVisitor();
+        HarvestingVisitor outer = new HarvestingVisitor() {
+                public void visitNode(Node n) {
+                    super.visitNode(n);
+                    // a query run from within another query must not disturb it
+                    index.intersectionQuery(query, inner);
+                }
+            };
+
+        index.intersectionQuery(query, outer);
+
+        Set comp_result = noIndexQuery(regions, query, AbstractSpatialIndex.IntersectionQuery);
+        assertEquals(comp_result, outer.harvest);
+        assertEquals(comp_result, inner.harvest);
+    }
+
     public void testContainmentQuery() {
         HarvestingVisitor v = new HarvestingVisitor();
         Region query = new Region(new double[] { 0, 0 }, new double[] { 1, 1 });
@@ -125,6 +144,42 @@ public abstract class AbstractSpatialIndexTest extends TestCase {
         assertEquals(comp_result, v.harvest);
     }
 
+    public void testNearestNeighborQuery() {
+        for (int q = 0; q < 10; q++) {
+            int k = 1 + generator.nextInt(20);
+            Point query = new Point(new double[] { generator.nextDouble(), generator.nextDouble() });
+            final ArrayList<Object> found = new ArrayList<Object>();
+            index.nearestNeighborQuery(k, query,
+                new Visitor() {
+                    public void visitData(Data d) {
+                        found.add(d.getData());
+                    }
+
+                    public void visitNode(Node n) {
+                    }
+
+                    public boolean isDataVisitor() {
+                        return true;
+                    }
+                });
+
+            double[] distances = new double[setSize];
+
+            for (int i = 0; i < setSize; i++) {
+                distances[i] = query.getMinimumDistance((Region) regions.get(i));
+            }
+
+            Arrays.sort(distances);
+            assertEquals(k, found.size());
+
+            for (int i = 0; i < k; i++) {
+                int id = Integer.parseInt(((String) found.get(i)).substring("Object: ".length()));
+                // data are visited by increasing distance
+                assertEquals(distances[i], query.getMinimumDistance((Region) regions.get(id)), 1e-12);
+            }
+        }
+    }
+
     public void testQueryStrategy() {
         // TODO: 
     }
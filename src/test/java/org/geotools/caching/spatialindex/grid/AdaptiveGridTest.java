@@ -0,0 +1,87 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.grid;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import java.util.HashSet;
+import org.geotools.caching.spatialindex.AbstractSpatialIndex;
+import org.geotools.caching.spatialindex.AbstractSpatialIndexTest;
+import org.geotools.caching.spatialindex.Data;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.Visitor;
+import org.geotools.caching.spatialindex.store.MemoryStorage;
+
+
+public class AdaptiveGridTest extends AbstractSpatialIndexTest {
+    Grid index;
+
+    public static Test suite() {
+        return new TestSuite(AdaptiveGridTest.class);
+    }
+
+    protected AbstractSpatialIndex createIndex() {
+        index = new Grid(new Region(universe), 100, new MemoryStorage(100));
+        index.setAdaptive(10, 0, 3);
+
+        return index;
+    }
+
+    public void testSplit() {
+        // dense tiles have been split
+        assertTrue(index.getStatistics().getNumberOfNodes() > 101);
+    }
+
+    public void testMerge() {
+        Grid grid = new Grid(new Region(universe), 100, new MemoryStorage(100));
+        grid.setAdaptive(4, 0, 2);
+
+        Region[] regs = new Region[10];
+
+        for (int i = 0; i < regs.length; i++) {
+            double x = 0.01 + (i * 0.002);
+            regs[i] = new Region(new double[] { x - 0.0001, 0.0099 },
+                    new double[] { x + 0.0001, 0.0101 });
+            grid.insertData("Object: " + i, regs[i], i);
+        }
+
+        assertEquals(101 + 8, grid.getStatistics().getNumberOfNodes());
+
+        final HashSet<Object> harvest = new HashSet<Object>();
+        grid.intersectionQuery(new Region(new double[] { 0, 0 }, new double[] { 0.05, 0.05 }),
+            new Visitor() {
+                public void visitData(Data d) {
+                    harvest.add(d.getData());
+                }
+
+                public void visitNode(Node n) {
+                }
+
+                public boolean isDataVisitor() {
+                    return true;
+                }
+            });
+        assertEquals(10, harvest.size());
+
+        for (int i = 0; i < regs.length; i++) {
+            assertTrue(grid.deleteData(regs[i], i));
+        }
+
+        assertEquals(0, grid.getStatistics().getNumberOfData());
+        assertEquals(101, grid.getStatistics().getNumberOfNodes());
+    }
+}
@@ -20,6 +20,7 @@ import junit.framework.TestSuite;
 import java.util.Iterator;
 import org.geotools.caching.spatialindex.NodeIdentifier;
 import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.RegionNodeIdentifier;
 import org.geotools.caching.spatialindex.store.MemoryStorage;
 
 
@@ -118,4 +119,18 @@ public class GridRootNodeTest extends GridNodeTest {
             assertEquals(size, next.getShape().getArea(), 1e-2);
         }
     }
+
+    public void testGridIndexOf() {
+        node.split();
+        node3D.split();
+
+        for (int i = 0; i < node.children.size(); i++) {
+            assertEquals(i, node.gridIndexOf((RegionNodeIdentifier) node.getChildIdentifier(i)));
+        }
+
+        for (int i = 0; i < node3D.children.size(); i++) {
+            assertEquals(i,
+                node3D.gridIndexOf((RegionNodeIdentifier) node3D.getChildIdentifier(i)));
+        }
+    }
 }
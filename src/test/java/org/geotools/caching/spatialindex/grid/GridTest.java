@@ -15,11 +15,19 @@
  */
 package org.geotools.caching.spatialindex.grid;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import junit.framework.Test;
 import junit.framework.TestSuite;
 import org.geotools.caching.spatialindex.AbstractSpatialIndex;
 import org.geotools.caching.spatialindex.AbstractSpatialIndexTest;
+import org.geotools.caching.spatialindex.Data;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.Point;
 import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.Visitor;
 import org.geotools.caching.spatialindex.store.MemoryStorage;
 
 
@@ -40,4 +48,105 @@ public class GridTest extends AbstractSpatialIndexTest {
         super.testInsertion();
         System.out.println("Root insertions = " + index.root_insertions);
     }
+
+    public void testQueryOnUpperBoundary() {
+        double[] high = new double[] { universe.getHigh(0), universe.getHigh(1) };
+        double[] low = new double[] { high[0] - 0.01, high[1] - 0.01 };
+        index.insertData("corner", new Region(low, high), -1);
+
+        final int[] found = new int[1];
+        index.pointLocationQuery(new Point(high),
+            new Visitor() {
+                public void visitData(Data d) {
+                    if ("corner".equals(d.getData())) {
+                        found[0]++;
+                    }
+                }
+
+                public void visitNode(Node n) {
+                }
+
+                public boolean isDataVisitor() {
+                    return true;
+                }
+            });
+        assertEquals(1, found[0]);
+    }
+
+    public void testDataInSeveralTilesVisitedOnce() {
+        index.setAdaptive(1, 0, 2);
+        index.insertData("wide",
+            new Region(new double[] { 0.15, 0.15 }, new double[] { 0.25, 0.25 }), -1);
+        // splits one of the tiles holding wide data
+        index.insertData("small",
+            new Region(new double[] { 0.16, 0.16 }, new double[] { 0.17, 0.17 }), -2);
+
+        Region query = new Region(new double[] { 0.1, 0.1 }, new double[] { 0.3, 0.3 });
+        final int[] found = new int[1];
+        Visitor v = new Visitor() {
+                public void visitData(Data d) {
+                    if ("wide".equals(d.getData())) {
+                        found[0]++;
+                    }
+                }
+
+                public void visitNode(Node n) {
+                }
+
+                public boolean isDataVisitor() {
+                    return true;
+                }
+            };
+
+        index.intersectionQuery(query, v);
+        assertEquals(1, found[0]);
+        found[0] = 0;
+        index.containmentQuery(query, v);
+        assertEquals(1, found[0]);
+        found[0] = 0;
+        index.intersectionQuery(new Region(new double[] { 0.22, 0.22 }, new double[] { 0.4, 0.4 }),
+            v);
+        assertEquals(1, found[0]);
+    }
+
+    public void testBulkInsertion() {
+        Grid bulk = new Grid(new Region(universe), 100, new MemoryStorage(100));
+        List<GridData> data = new ArrayList<GridData>();
+
+        for (int i = 0; i < regions.size(); i++) {
+            data.add(new GridData(i, (Region) regions.get(i), "Object: " + i));
+        }
+
+        bulk.insertData(data);
+        assertEquals(index.getStatistics().getNumberOfData(),
+            bulk.getStatistics().getNumberOfData());
+        // each tile is written once, rather than once per data
+        assertTrue(bulk.getStatistics().getWrites() < index.getStatistics().getWrites());
+
+        Region query = new Region(new double[] { .25, .25 }, new double[] { .75, .75 });
+        Set<Object> expected = new HashSet<Object>();
+        Set<Object> found = new HashSet<Object>();
+        index.intersectionQuery(query, new Collector(expected));
+        bulk.intersectionQuery(query, new Collector(found));
+        assertEquals(expected, found);
+    }
+
+    static class Collector implements Visitor {
+        final Set<Object> harvest;
+
+        Collector(Set<Object> harvest) {
+            this.harvest = harvest;
+        }
+
+        public void visitData(Data d) {
+            harvest.add(d.getData());
+        }
+
+        public void visitNode(Node n) {
+        }
+
+        public boolean isDataVisitor() {
+            return true;
+        }
+    }
 }
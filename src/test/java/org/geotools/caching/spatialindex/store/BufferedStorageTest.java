@@ -0,0 +1,119 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.store;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.RegionNodeIdentifier;
+import org.geotools.caching.spatialindex.Storage;
+
+
+public class BufferedStorageTest extends AbstractStorageTest {
+    MemoryStorage backend;
+
+    public static Test suite() {
+        return new TestSuite(BufferedStorageTest.class);
+    }
+
+    @Override
+    Storage createStorage() {
+        backend = new MemoryStorage(100);
+
+        return new BufferedStorage(backend, 2);
+    }
+
+    public void testWriteBack() {
+        BufferedStorage storage = (BufferedStorage) store;
+        storage.put(n);
+        assertNull(backend.get(id));
+        assertSame(n, storage.get(id));
+        assertEquals(1, storage.getHits());
+
+        for (int i = 0; i < 2; i++) {
+            storage.put(new TestNode(grid,
+                    new Region(new double[] { i, i }, new double[] { 2, 2 })));
+        }
+
+        // n has been evicted and written back
+        assertEquals(2, storage.getBufferedCount());
+        assertEquals(1, storage.getWriteBacks());
+        assertSame(n, backend.get(id));
+
+        // reading n back evicts another modified node
+        assertSame(n, storage.get(id));
+        assertEquals(1, storage.getMisses());
+        assertEquals(2, storage.getWriteBacks());
+
+        storage.flush();
+        assertEquals(3, storage.getWriteBacks());
+        assertNotNull(backend.get(new RegionNodeIdentifier(
+                    new Region(new double[] { 1, 1 }, new double[] { 2, 2 }))));
+    }
+
+    /** Two threads missing the same node both read it from underlying storage at once,
+     * and then share the node buffered by the first one.
+     */
+    public void testConcurrentMiss() throws InterruptedException {
+        final CountDownLatch reading = new CountDownLatch(2);
+        MemoryStorage slow = new MemoryStorage(100) {
+                public Node get(NodeIdentifier id) {
+                    reading.countDown();
+
+                    try {
+                        if (!reading.await(10, TimeUnit.SECONDS)) {
+                            return null; // readers hold lock
+                        }
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+
+                    // a new copy on each read, as read from disk
+                    return new TestNode(grid,
+                        new Region(new double[] { 0, 0 }, new double[] { 1, 1 }));
+                }
+            };
+
+        slow.put(n);
+
+        final BufferedStorage storage = new BufferedStorage(slow, 2);
+        final Node[] read = new Node[2];
+        Thread[] threads = new Thread[read.length];
+
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                        public void run() {
+                            read[index] = storage.get(id);
+                        }
+                    };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertNotNull(read[i]);
+        }
+
+        assertSame(read[0], read[1]);
+        assertSame(read[0], storage.get(id));
+        assertEquals(1, storage.getBufferedCount());
+    }
+}
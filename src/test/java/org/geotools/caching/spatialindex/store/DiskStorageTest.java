@@ -17,8 +17,19 @@ package org.geotools.caching.spatialindex.store;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.RegionNodeIdentifier;
 import org.geotools.caching.spatialindex.Storage;
 
 
@@ -27,10 +38,14 @@ public class DiskStorageTest extends AbstractStorageTest {
         return new TestSuite(DiskStorageTest.class);
     }
 
+    File file;
+
     @Override
     Storage createStorage() {
         try {
-            DiskStorage storage = new DiskStorage(File.createTempFile("cache", ".tmp"), 1000);
+            file = File.createTempFile("cache", ".tmp");
+
+            DiskStorage storage = new DiskStorage(file, 1000);
             storage.setParent(this.grid);
 
             return storage;
@@ -38,4 +53,185 @@ public class DiskStorageTest extends AbstractStorageTest {
             throw new RuntimeException(e);
         }
     }
+
+    public void testReopen() throws IOException {
+        DiskStorage storage = (DiskStorage) store;
+        storage.put(n);
+        storage.checkpoint(new byte[] { 1, 2, 3 });
+        storage.close();
+
+        DiskStorage reopened = new DiskStorage(file, 1000);
+        reopened.setParent(this.grid);
+        assertEquals(3, reopened.getProperties().length);
+        assertEquals(n.getIdentifier(), reopened.get(id).getIdentifier());
+
+        // once modified, storage does not reopen from a stale checkpoint
+        reopened.remove(id);
+        reopened.close();
+        reopened = new DiskStorage(file, 1000);
+        assertNull(reopened.getProperties());
+        assertNull(reopened.get(id));
+    }
+
+    public void testCompression() throws IOException {
+        DiskStorage storage = (DiskStorage) store;
+        storage.put(n);
+        storage.setCompressionLevel(Deflater.BEST_SPEED);
+        storage.put(n);
+        assertEquals(n.getIdentifier(), storage.get(id).getIdentifier());
+        storage.checkpoint(new byte[0]);
+        storage.close();
+
+        DiskStorage reopened = new DiskStorage(file, 1000);
+        reopened.setParent(this.grid);
+        assertEquals(n.getIdentifier(), reopened.get(id).getIdentifier());
+    }
+
+    public void testCompact() throws IOException {
+        DiskStorage storage = new DiskStorage(File.createTempFile("cache", ".tmp"), 64);
+        storage.setParent(this.grid);
+
+        TestNode[] nodes = new TestNode[6];
+
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new TestNode(grid,
+                    new Region(new double[] { i, i }, new double[] { 10, 10 }));
+            storage.put(nodes[i]);
+        }
+
+        int pages = storage.getPageCount();
+        assertEquals(0, storage.getFreePageCount());
+
+        for (int i = 0; i < nodes.length; i += 2) {
+            storage.remove(nodes[i].getIdentifier());
+        }
+
+        assertTrue(storage.getFreePageCount() > 0);
+        assertTrue(storage.compact() > 0);
+        assertEquals(0, storage.getFreePageCount());
+        assertTrue(storage.getPageCount() <= (pages / 2));
+
+        for (int i = 1; i < nodes.length; i += 2) {
+            RegionNodeIdentifier id = new RegionNodeIdentifier(nodes[i]);
+            assertEquals(id, storage.get(id).getIdentifier());
+        }
+
+        storage.close();
+    }
+
+    public void testConcurrentReads() throws InterruptedException {
+        final DiskStorage storage = (DiskStorage) store;
+        storage.put(n);
+
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[4];
+
+        for (int i = 0; i < threads.length; i++) {
+            final boolean writer = (i == 0);
+            threads[i] = new Thread() {
+                        public void run() {
+                            try {
+                                for (int j = 0; j < 200; j++) {
+                                    if (writer) {
+                                        storage.put(n);
+                                    } else {
+                                        assertEquals(n.getIdentifier(),
+                                            storage.get(id).getIdentifier());
+                                    }
+                                }
+                            } catch (Throwable t) {
+                                failure[0] = t;
+                            }
+                        }
+                    };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+
+        assertNull(failure[0]);
+    }
+
+    /** Readers should inflate and decode nodes at the same time :
+     * the marshaller lets no reader through until two of them are decoding.
+     */
+    public void testConcurrentDecoding() throws Exception {
+        final CountDownLatch decoding = new CountDownLatch(2);
+        NodeMarshaller marshaller = new NodeMarshaller() {
+                public byte[] marshall(Node node) throws IOException {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    ObjectOutputStream oos = new ObjectOutputStream(baos);
+                    oos.writeObject(node);
+                    oos.close();
+
+                    return baos.toByteArray();
+                }
+
+                public Node unmarshall(byte[] data)
+                    throws IOException, ClassNotFoundException {
+                    decoding.countDown();
+
+                    try {
+                        if (!decoding.await(10, TimeUnit.SECONDS)) {
+                            throw new IOException("Readers decode one at a time");
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.toString());
+                    }
+
+                    return (Node) new ObjectInputStream(new ByteArrayInputStream(data))
+                    .readObject();
+                }
+            };
+
+        final DiskStorage storage = new DiskStorage(File.createTempFile("cache", ".tmp"), 1000,
+                marshaller);
+        storage.setParent(this.grid);
+        storage.setCompressionLevel(Deflater.BEST_SPEED);
+        storage.put(n);
+
+        final Node[] read = new Node[2];
+        Thread[] threads = new Thread[read.length];
+
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                        public void run() {
+                            read[index] = storage.get(id);
+                        }
+                    };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertEquals(n.getIdentifier(), read[i].getIdentifier());
+        }
+
+        assertEquals(0, storage.getCorruptedCount());
+        storage.close();
+    }
+
+    public void testCorruptedNode() throws IOException {
+        DiskStorage storage = (DiskStorage) store;
+        storage.put(n);
+        storage.checkpoint(new byte[0]); // written, even behind
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(DiskStorage.HEADER_SIZE + 10);
+
+        int b = raf.read();
+        raf.seek(DiskStorage.HEADER_SIZE + 10);
+        raf.write(~b);
+        raf.close();
+
+        assertNull(storage.get(id));
+        assertEquals(1, storage.getCorruptedCount());
+
+        // node is dropped, and can be stored again
+        storage.put(n);
+        assertEquals(n.getIdentifier(), storage.get(id).getIdentifier());
+    }
 }
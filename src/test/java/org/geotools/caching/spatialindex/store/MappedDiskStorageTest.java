@@ -0,0 +1,67 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.store;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import java.io.File;
+import java.io.IOException;
+import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.Storage;
+
+
+public class MappedDiskStorageTest extends AbstractStorageTest {
+    public static Test suite() {
+        return new TestSuite(MappedDiskStorageTest.class);
+    }
+
+    @Override
+    Storage createStorage() {
+        try {
+            MappedDiskStorage storage = new MappedDiskStorage(File.createTempFile("cache",
+                        ".tmp"), 1000);
+            storage.setParent(this.grid);
+
+            return storage;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void testClose() throws IOException {
+        MappedDiskStorage storage = (MappedDiskStorage) createStorage();
+        storage.put(n);
+        storage.close();
+
+        try {
+            storage.get(n.getIdentifier());
+            fail("Storage should not be usable once closed.");
+        } catch (IllegalStateException e) {
+            // expected, as file has been closed
+        }
+
+        // segments are dropped on close, puts must not map them again
+        try {
+            storage.put(new TestNode(grid,
+                    new Region(new double[] { 0, 0 }, new double[] { 2, 2 })));
+            fail("Storage should not be usable once closed.");
+        } catch (IllegalStateException e) {
+            assertEquals("Storage is closed.", e.getMessage());
+        }
+
+        storage.close();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.store;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.Storage;
+
+
+public class OffHeapStorageTest extends AbstractStorageTest {
+    public static Test suite() {
+        return new TestSuite(OffHeapStorageTest.class);
+    }
+
+    @Override
+    Storage createStorage() {
+        // small slots and slabs, so that nodes span several slots and slabs
+        OffHeapStorage storage = new OffHeapStorage(64, 4, null);
+        storage.setParent(this.grid);
+
+        return storage;
+    }
+
+    public void testSlotsReused() {
+        OffHeapStorage storage = (OffHeapStorage) store;
+        storage.put(n);
+
+        long used = storage.getUsedSize();
+        long allocated = storage.getAllocatedSize();
+        assertTrue(used > 64);
+
+        storage.put(n);
+        assertEquals(used, storage.getUsedSize());
+        assertEquals(allocated, storage.getAllocatedSize());
+
+        storage.remove(id);
+        assertEquals(0, storage.getUsedSize());
+        storage.put(n);
+        assertEquals(allocated, storage.getAllocatedSize());
+        assertEquals(n.getIdentifier(), storage.get(id).getIdentifier());
+    }
+
+    public void testConcurrentDecoding() throws InterruptedException {
+        final CountDownLatch decoding = new CountDownLatch(2);
+        NodeMarshaller marshaller = new NodeMarshaller() {
+                public byte[] marshall(Node node) throws IOException {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    ObjectOutputStream oos = new ObjectOutputStream(baos);
+                    oos.writeObject(node);
+                    oos.close();
+
+                    return baos.toByteArray();
+                }
+
+                public Node unmarshall(byte[] data)
+                    throws IOException, ClassNotFoundException {
+                    decoding.countDown();
+
+                    try {
+                        if (!decoding.await(10, TimeUnit.SECONDS)) {
+                            throw new IOException("Readers decode one at a time");
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.toString());
+                    }
+
+                    return (Node) new ObjectInputStream(new ByteArrayInputStream(data))
+                    .readObject();
+                }
+            };
+
+        final OffHeapStorage storage = new OffHeapStorage(64, 4, marshaller);
+        storage.setParent(this.grid);
+        storage.put(n);
+
+        final Node[] read = new Node[2];
+        Thread[] threads = new Thread[read.length];
+
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                        public void run() {
+                            read[index] = storage.get(id);
+                        }
+                    };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertEquals(n.getIdentifier(), read[i].getIdentifier());
+        }
+    }
+}
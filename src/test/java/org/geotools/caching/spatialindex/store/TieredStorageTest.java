@@ -0,0 +1,131 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.store;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.NodeIdentifier;
+import org.geotools.caching.spatialindex.Region;
+import org.geotools.caching.spatialindex.RegionNodeIdentifier;
+import org.geotools.caching.spatialindex.Storage;
+
+
+public class TieredStorageTest extends AbstractStorageTest {
+    DiskStorage large;
+
+    public static Test suite() {
+        return new TestSuite(TieredStorageTest.class);
+    }
+
+    @Override
+    Storage createStorage() {
+        try {
+            large = new DiskStorage(File.createTempFile("cache", ".tmp"), 1000);
+
+            TieredStorage storage = new TieredStorage(new MemoryStorage(10), large, 1);
+            storage.setParent(this.grid);
+
+            return storage;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void testDemoteAndPromote() {
+        TieredStorage storage = (TieredStorage) store;
+        storage.put(n);
+        assertSame(n, storage.get(id));
+        assertNull(large.get(id));
+
+        TestNode other = new TestNode(grid,
+                new Region(new double[] { 0, 0 }, new double[] { 2, 2 }));
+        storage.put(other);
+
+        // n is demoted to disk, and promoted back when read
+        assertEquals(1, storage.getDemotions());
+        assertNotNull(large.get(id));
+
+        Node promoted = storage.get(id);
+        assertEquals(id, promoted.getIdentifier());
+        assertEquals(1, storage.getPromotions());
+        assertEquals(2, storage.getDemotions());
+        assertEquals(1, storage.getHotCount());
+
+        // other was demoted, n was not modified since promoted
+        assertNotNull(large.get(other.getIdentifier()));
+        assertSame(promoted, storage.get(id));
+        assertEquals(2, storage.getHits());
+
+        storage.remove(id);
+        assertNull(storage.get(id));
+        assertNull(large.get(id));
+        assertNotNull(storage.get(new RegionNodeIdentifier(other)));
+    }
+
+    /** Two threads missing the same node both read it from large tier at once,
+     * and then share the node promoted by the first one.
+     */
+    public void testConcurrentMiss() throws InterruptedException {
+        final CountDownLatch reading = new CountDownLatch(2);
+        MemoryStorage slow = new MemoryStorage(100) {
+                public Node get(NodeIdentifier id) {
+                    reading.countDown();
+
+                    try {
+                        if (!reading.await(10, TimeUnit.SECONDS)) {
+                            return null; // readers hold lock
+                        }
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+
+                    // a new copy on each read, as read from disk
+                    return new TestNode(grid,
+                        new Region(new double[] { 0, 0 }, new double[] { 1, 1 }));
+                }
+            };
+
+        slow.put(n);
+
+        final TieredStorage storage = new TieredStorage(new MemoryStorage(10), slow, 1);
+        final Node[] read = new Node[2];
+        Thread[] threads = new Thread[read.length];
+
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                        public void run() {
+                            read[index] = storage.get(id);
+                        }
+                    };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertNotNull(read[i]);
+        }
+
+        assertSame(read[0], read[1]);
+        assertEquals(1, storage.getPromotions());
+        assertEquals(1, storage.getHotCount());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *    GeoTools - OpenSource mapping toolkit
+ *    http://geotools.org
+ *    (C) 2002-2006, GeoTools Project Managment Committee (PMC)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.caching.spatialindex.store;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import java.io.File;
+import java.io.IOException;
+import org.geotools.caching.spatialindex.Node;
+import org.geotools.caching.spatialindex.Storage;
+
+
+public class WriteBehindDiskStorageTest extends DiskStorageTest {
+    public static Test suite() {
+        return new TestSuite(WriteBehindDiskStorageTest.class);
+    }
+
+    @Override
+    Storage createStorage() {
+        DiskStorage storage = (DiskStorage) super.createStorage();
+        storage.setWriteBehind(4);
+
+        return storage;
+    }
+
+    public void testPendingWrites() throws IOException {
+        DiskStorage storage = (DiskStorage) store;
+
+        for (int i = 0; i < 100; i++) {
+            storage.put(n);
+            assertEquals(n.getIdentifier(), storage.get(id).getIdentifier());
+        }
+
+        storage.remove(id);
+        assertNull(storage.get(id));
+        storage.put(n);
+
+        // disabling write-behind writes pending nodes
+        storage.setWriteBehind(0);
+        assertEquals(0, storage.getWriteBehind());
+        assertEquals(n.getIdentifier(), storage.get(id).getIdentifier());
+        storage.close();
+
+        DiskStorage reopened = new DiskStorage(file, 1000);
+        assertNull(reopened.get(id));
+    }
+
+    public void testWriterFailure() throws IOException {
+        DiskStorage storage = (DiskStorage) store;
+        storage.channel.close(); // writer fails on next write
+        storage.put(n);
+
+        try {
+            storage.close();
+            fail("Writer failure should be reported on close");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // writer has been stopped, and its failure reported once
+        assertEquals(0, storage.getWriteBehind());
+        storage.setWriteBehind(0);
+    }
+
+    public void testEncodeFailure() throws IOException {
+        DiskStorage storage = new DiskStorage(File.createTempFile("cache", ".tmp"), 1000,
+                new NodeMarshaller() {
+                    public byte[] marshall(Node node) throws IOException {
+                        throw new IOException("Cannot encode node");
+                    }
+
+                    public Node unmarshall(byte[] data) {
+                        throw new UnsupportedOperationException();
+                    }
+                });
+        storage.setWriteBehind(4);
+
+        try {
+            storage.put(n);
+            fail("Encoding failure should not be silently dropped");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        storage.close();
+    }
+}
@@ -79,7 +79,7 @@ public class Generator {
         this.meansize = Math.min(xrange, yrange) / 20;
     }
 
-    static LineString createRectangle(double x1, double y1, double x2, double y2) {
+    public static LineString createRectangle(double x1, double y1, double x2, double y2) {
         double x_min = (x1 < x2) ? x1 : x2;
         double y_min = (y1 < y2) ? y1 : y2;
         double x_max = (x1 < x2) ? x2 : x1;
@@ -25,6 +25,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import com.vividsolutions.jts.geom.Geometry;
 import org.opengis.feature.simple.SimpleFeature;
 import org.geotools.feature.IllegalAttributeException;
 
@@ -61,6 +62,118 @@ public class MarshallerTest extends TestCase {
         assertTrue(f.equals(newf));
     }
 
+    /** Marshall and unmarshall a DefaultFeature using BINARY encoding,
+     * and test for equality with the result.
+     *
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws IllegalAttributeException
+     */
+    public void testMarshallBinary()
+        throws IOException, ClassNotFoundException, IllegalAttributeException {
+        Generator gen = new Generator(1000, 1000);
+        SimpleFeatureMarshaller m = new SimpleFeatureMarshaller(SimpleFeatureMarshaller.BINARY);
+        SimpleFeatureMarshaller ser = new SimpleFeatureMarshaller();
+
+        for (int i = 0; i < 10; i++) {
+            SimpleFeature f = (SimpleFeature) gen.createFeature(i);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            m.marshall(f, oos);
+            oos.close();
+
+            byte[] ba = baos.toByteArray();
+
+            ByteArrayInputStream bais = new ByteArrayInputStream(ba);
+            ObjectInputStream ois = new ObjectInputStream(bais);
+            SimpleFeature newf = m.unmarshall(ois);
+            bais.close();
+            assertEquals(f, newf);
+
+            // binary form should be smaller than serialized form
+            baos = new ByteArrayOutputStream();
+            oos = new ObjectOutputStream(baos);
+            ser.marshall(f, oos);
+            oos.close();
+            assertTrue(ba.length < baos.toByteArray().length);
+        }
+    }
+
+    static SimpleFeature roundTrip(SimpleFeatureMarshaller m, SimpleFeature f)
+        throws IOException, ClassNotFoundException, IllegalAttributeException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        m.marshall(f, oos);
+        oos.close();
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                    baos.toByteArray()));
+
+        return m.unmarshall(ois);
+    }
+
+    /** BINARY encoding should handle feature IDs and strings longer than 64 KB.
+     *
+     * @throws Exception
+     */
+    public void testMarshallBinaryLongID() throws Exception {
+        SimpleFeatureMarshaller m = new SimpleFeatureMarshaller(SimpleFeatureMarshaller.BINARY);
+        StringBuffer sb = new StringBuffer();
+
+        for (int i = 0; i < 70000; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+
+        String fid = sb.toString();
+        Geometry g = Generator.createRectangle(0, 0, 1, 1);
+        SimpleFeature f = (SimpleFeature) Generator.type.create(new Object[] { g, fid }, fid);
+        SimpleFeature newf = roundTrip(m, f);
+        assertEquals(fid, newf.getID());
+        assertEquals(f, newf);
+    }
+
+    /** BINARY encoding should keep geometry SRID and user data.
+     *
+     * @throws Exception
+     */
+    public void testMarshallBinaryGeometrySRID() throws Exception {
+        SimpleFeatureMarshaller m = new SimpleFeatureMarshaller(SimpleFeatureMarshaller.BINARY);
+        Geometry g = Generator.createRectangle(0, 0, 1, 1);
+        g.setSRID(4326);
+
+        SimpleFeature f = (SimpleFeature) Generator.type.create(new Object[] { g, "srid" }, "f1");
+        Geometry newg = (Geometry) roundTrip(m, f).getAttribute("geom");
+        assertTrue(g.equalsExact(newg));
+        assertEquals(4326, newg.getSRID());
+
+        g = Generator.createRectangle(0, 0, 1, 1);
+        g.setUserData("user data");
+        f = (SimpleFeature) Generator.type.create(new Object[] { g, "user data" }, "f2");
+        newg = (Geometry) roundTrip(m, f).getAttribute("geom");
+        assertTrue(g.equalsExact(newg));
+        assertEquals("user data", newg.getUserData());
+    }
+
+    /** Features written by a marshaller should be read by another one sharing its types,
+     * as threads use a marshaller each.
+     *
+     * @throws Exception
+     */
+    public void testSharedTypes() throws Exception {
+        SimpleFeatureMarshaller m = new SimpleFeatureMarshaller(SimpleFeatureMarshaller.BINARY);
+        SimpleFeatureMarshaller other = new SimpleFeatureMarshaller(m);
+        SimpleFeature f = (SimpleFeature) new Generator(1000, 1000).createFeature(0);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        m.marshall(f, oos);
+        oos.close();
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                    baos.toByteArray()));
+        assertEquals(f, other.unmarshall(ois));
+        assertEquals(SimpleFeatureMarshaller.BINARY, other.getEncoding());
+    }
+
     /** Marshall and unmarshall same DefaultFeature many times.
      *
      * @throws IOException